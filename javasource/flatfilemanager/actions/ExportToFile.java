@@ -9,7 +9,6 @@
 
 package flatfilemanager.actions;
 
-import com.mendix.core.Core;
 import com.mendix.systemwideinterfaces.core.IMendixObject;
 import flatfilemanager.implementation.FileHandler;
 import com.mendix.systemwideinterfaces.core.IContext;
@@ -43,7 +42,7 @@ public class ExportToFile extends CustomJavaAction<java.lang.Boolean>
 		// BEGIN USER CODE
 		FileHandler fileHandler = new FileHandler(this.getContext(), this.ExportConfig.getMendixObject(), this.ExportObject);
 
-		Core.storeFileDocumentContent(this.getContext(), this.ExportFile.getMendixObject(), this.Filename, fileHandler.exportToFile());
+		fileHandler.exportToFileDocument(this.ExportFile.getMendixObject(), this.Filename);
 
 
 		return true;
@@ -9,16 +9,12 @@
 
 package flatfilemanager.actions;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
-import org.apache.commons.io.IOUtils;
 import system.proxies.FileDocument;
 import com.mendix.core.Core;
 import com.mendix.systemwideinterfaces.core.IMendixObject;
 import com.mendix.systemwideinterfaces.core.IContext;
 import com.mendix.webui.CustomJavaAction;
+import flatfilemanager.implementation.ExportCompression;
 
 /**
  * zips a filedocument into a new filedocument
@@ -40,21 +36,11 @@ public class Zip_FileDocument extends CustomJavaAction<IMendixObject>
 		this.document = __document == null ? null : system.proxies.FileDocument.initialize(getContext(), __document);
 
 		// BEGIN USER CODE
-		ByteArrayOutputStream zipOut = new ByteArrayOutputStream();
-        ZipOutputStream zipfile = new ZipOutputStream(zipOut);
-        zipfile.putNextEntry(new ZipEntry(this.document.getName()));
-        IOUtils.copy(Core.getFileDocumentContent(this.getContext(), this.document.getMendixObject()), zipfile);
-        zipfile.close();
+		IMendixObject target = Core.instantiate(getContext(), FileDocument.getType());
+		ExportCompression.zipFileDocument(getContext(), this.document.getMendixObject(), target, this.document.getName(), this.document.getName() + ".zip");
+		Core.commit(this.getContext(), target);
 
-        
-        IMendixObject target = Core.instantiate(getContext(), FileDocument.getType());
-        Core.storeFileDocumentContent(getContext(), 
-        		target, 
-        		this.document.getName() + ".zip", 
-        		new ByteArrayInputStream(zipOut.toByteArray()));
-        Core.commit(this.getContext(), target);
-        
-        return target;
+		return target;
 		// END USER CODE
 	}
 
@@ -0,0 +1,253 @@
+package flatfilemanager.implementation;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mendix.core.Core;
+import com.mendix.core.CoreException;
+import com.mendix.logging.ILogNode;
+import com.mendix.systemwideinterfaces.connectionbus.data.IDataRow;
+import com.mendix.systemwideinterfaces.connectionbus.data.IDataTable;
+import com.mendix.systemwideinterfaces.core.IContext;
+import com.mendix.systemwideinterfaces.core.IMendixIdentifier;
+import com.mendix.systemwideinterfaces.core.IMendixObject;
+import com.mendix.systemwideinterfaces.core.meta.IMetaAssociation;
+import com.mendix.systemwideinterfaces.core.meta.IMetaPrimitive;
+import com.mendix.systemwideinterfaces.core.meta.IMetaPrimitive.PrimitiveType;
+
+/**
+ * Retrieves all objects associated to an export object, page by page, in the order of the sort attribute.
+ *
+ * By default the pages are retrieved using an XPath query with a growing offset, when keyset pagination is enabled
+ * every page continues after the sort value and id of the last object of the previous page. That way the database
+ * doesn't have to skip all previous rows for each page.
+ * With keyset pagination the objects are ordered by the sort attribute and the object id, objects without a sort value
+ * are exported after all other objects. A DateTime sort attribute always uses the offset, since there is no verified way
+ * to write a date as a literal in an OQL query.
+ *
+ * The pager can also retrieve the objects associated to several export objects at once, the objects of every single
+ * export object are then still in the same order as when they are retrieved for that export object alone.
+ */
+public class AssociatedObjectPager {
+
+	private static ILogNode logger = Core.getLogger("FlatFileExport");
+
+	private IContext context;
+	private String objectType;
+	private String referenceName;
+	private String sortAttribute;
+	private List<Long> exportObjectIds;
+	private int limit;
+	private boolean useKeyset;
+
+	private int offset = 0;
+	private int totalSize = 0;
+	private boolean finished = false;
+
+	private String parentPath;
+	private PrimitiveType sortType;
+	private boolean retrievingEmptySortValues = false;
+	private IMendixObject lastObject;
+
+	public AssociatedObjectPager( IContext context, String objectType, String referenceName, String sortAttribute, IMendixObject exportObject, int limit, boolean useKeyset ) throws CoreException {
+		this(context, objectType, referenceName, sortAttribute, Collections.singletonList(exportObject.getId().toLong()), limit, useKeyset);
+	}
+
+	/**
+	 * Retrieve the objects associated to any of the export objects, the associated object has to own the reference to
+	 * see to which export object it belongs
+	 */
+	public AssociatedObjectPager( IContext context, String objectType, String referenceName, String sortAttribute, List<Long> exportObjectIds, int limit, boolean useKeyset ) throws CoreException {
+		this.context = context;
+		this.objectType = objectType;
+		this.referenceName = referenceName;
+		this.sortAttribute = sortAttribute;
+		this.exportObjectIds = exportObjectIds;
+		this.limit = limit;
+		this.useKeyset = useKeyset;
+
+		if ( this.useKeyset ) {
+			IMetaPrimitive primitive = Core.getMetaObject(objectType).getMetaPrimitive(sortAttribute);
+			if ( primitive == null )
+				throw new CoreException("Unable to use keyset pagination, attribute: " + sortAttribute + " does not exist in: " + objectType);
+			this.sortType = primitive.getType();
+			if ( !supportsKeyset(this.sortType) ) {
+				logger.debug("Retrieving " + objectType + " with an offset, keyset pagination doesn't support sort attribute: " + sortAttribute + " of type: " + this.sortType);
+				this.useKeyset = false;
+				return;
+			}
+
+			this.parentPath = getParentPath("specifiedObject", objectType, referenceName);
+			if ( this.parentPath == null )
+				throw new CoreException("Unable to use keyset pagination, association: " + referenceName + " does not exist");
+		}
+	}
+
+	/**
+	 * @return the OQL path from the object with the alias to the id of the object on the other side of the reference,
+	 *         or null when the association doesn't exist
+	 */
+	static String getParentPath( String alias, String objectType, String referenceName ) {
+		IMetaAssociation association = Core.getMetaAssociation(referenceName);
+		if ( association == null )
+			return null;
+
+		String parentObjectName = association.getParent().getName();
+		String otherObjectName;
+		if ( parentObjectName.equals(objectType) || Core.isSubClassOf(parentObjectName, objectType) )
+			otherObjectName = association.getChild().getName();
+		else
+			otherObjectName = parentObjectName;
+
+		return alias + "/" + quote(referenceName) + "/" + quote(otherObjectName) + "/ID";
+	}
+
+	/**
+	 * @return the next page of associated objects, an empty list when all objects have been retrieved
+	 */
+	public List<IMendixObject> next() throws CoreException {
+		if ( this.finished )
+			return Collections.emptyList();
+
+		List<IMendixObject> result;
+		if ( this.useKeyset ) {
+			result = nextKeysetPage();
+			// Continue with the objects without a sort value once all others have been retrieved
+			if ( result.size() < this.limit && !this.retrievingEmptySortValues ) {
+				this.retrievingEmptySortValues = true;
+				this.lastObject = null;
+
+				List<IMendixObject> emptySortValues = nextKeysetPage();
+				if ( emptySortValues.size() > 0 ) {
+					result = new ArrayList<IMendixObject>(result);
+					result.addAll(emptySortValues);
+				}
+			}
+			if ( result.size() > 0 )
+				this.lastObject = result.get(result.size() - 1);
+		}
+		else {
+			HashMap<String, String> sortMap = new HashMap<String, String>();
+			sortMap.put(this.sortAttribute, "ASC");
+			StringBuilder constraint = new StringBuilder();
+			for( Long exportObjectId : this.exportObjectIds ) {
+				if ( constraint.length() > 0 )
+					constraint.append(" or ");
+				constraint.append(this.referenceName).append("=").append(exportObjectId);
+			}
+			result = Core.retrieveXPathQuery(this.context, "//" + this.objectType + "[" + constraint + "]", this.limit, this.offset, sortMap);
+			this.offset += this.limit;
+		}
+
+		if ( result.size() == 0 )
+			this.finished = true;
+		this.totalSize += result.size();
+
+		return result;
+	}
+
+	/**
+	 * @return the nr of objects that has been retrieved so far
+	 */
+	public int getTotalSize() {
+		return this.totalSize;
+	}
+
+	private List<IMendixObject> nextKeysetPage() throws CoreException {
+		String sortPath = "specifiedObject/" + this.sortAttribute;
+
+		StringBuilder builder = new StringBuilder();
+		builder.append("SELECT specifiedObject/ID AS ID FROM ").append(quote(this.objectType)).append(" AS specifiedObject");
+		builder.append(" WHERE ").append(this.parentPath);
+		if ( this.exportObjectIds.size() == 1 )
+			builder.append("=").append(this.exportObjectIds.get(0));
+		else {
+			builder.append(" IN (");
+			for( int i = 0; i < this.exportObjectIds.size(); i++ )
+				builder.append(i > 0 ? "," : "").append(this.exportObjectIds.get(i));
+			builder.append(")");
+		}
+
+		if ( this.retrievingEmptySortValues ) {
+			builder.append(" AND ").append(sortPath).append("=NULL");
+			if ( this.lastObject != null )
+				builder.append(" AND specifiedObject/ID>").append(this.lastObject.getId().toLong());
+			builder.append(" ORDER BY specifiedObject/ID ASC");
+		}
+		else {
+			builder.append(" AND ").append(sortPath).append("!=NULL");
+			if ( this.lastObject != null ) {
+				String lastValue = getQueryValue(this.sortType, this.lastObject.getValue(this.context, this.sortAttribute));
+				builder.append(" AND (").append(sortPath).append(">").append(lastValue)
+						.append(" OR (").append(sortPath).append("=").append(lastValue)
+						.append(" AND specifiedObject/ID>").append(this.lastObject.getId().toLong()).append("))");
+			}
+			builder.append(" ORDER BY ").append(sortPath).append(" ASC, specifiedObject/ID ASC");
+		}
+		builder.append(" LIMIT ").append(this.limit);
+
+		if ( logger.isTraceEnabled() )
+			logger.trace("Retrieving associated objects: " + builder.toString());
+
+		IDataTable table = Core.retrieveOQLDataTable(this.context, builder.toString());
+		if ( table.getRowCount() == 0 )
+			return Collections.emptyList();
+
+		List<IMendixIdentifier> idList = new ArrayList<IMendixIdentifier>(table.getRowCount());
+		for( IDataRow row : table.getRows() )
+			idList.add((IMendixIdentifier) row.getValue(this.context, 0));
+
+		// The objects can be returned in any order, put them back in the order of the query
+		Map<Long, IMendixObject> objects = new HashMap<Long, IMendixObject>(idList.size());
+		for( IMendixObject object : Core.retrieveIdList(this.context, idList) )
+			objects.put(object.getId().toLong(), object);
+
+		List<IMendixObject> result = new ArrayList<IMendixObject>(idList.size());
+		for( IMendixIdentifier id : idList ) {
+			IMendixObject object = objects.get(id.toLong());
+			if ( object != null )
+				result.add(object);
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return true when the values of the type can be written as a literal in an OQL query
+	 */
+	static boolean supportsKeyset( PrimitiveType sortType ) {
+		return sortType != PrimitiveType.DateTime;
+	}
+
+	/**
+	 * @return the value as a literal in an OQL query, only for types that are supported by keyset pagination
+	 */
+	static String getQueryValue( PrimitiveType sortType, Object value ) {
+		switch (sortType) {
+		case AutoNumber:
+		case Integer:
+		case Long:
+		case Boolean:
+			return String.valueOf(value);
+		case Decimal:
+			return ((BigDecimal) value).toPlainString();
+		case DateTime:
+			throw new IllegalArgumentException("Unable to write a DateTime value as a literal in an OQL query");
+		default:
+			// Compatibility fix since Currency is no longer part of the latest release
+			if ( "Currency".equals(sortType.toString()) || "Float".equals(sortType.toString()) )
+				return String.valueOf(value);
+
+			return "'" + String.valueOf(value).replace("'", "''") + "'";
+		}
+	}
+
+	static String quote( String completeName ) {
+		String[] nameArr = completeName.split("\\.");
+		return "\"" + nameArr[0] + "\".\"" + nameArr[1] + "\"";
+	}
+}
@@ -3,26 +3,26 @@ package flatfilemanager.implementation;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Writer;
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.mendix.core.Core;
 import com.mendix.core.CoreException;
 import com.mendix.logging.ILogNode;
 import com.mendix.systemwideinterfaces.core.IContext;
-import com.mendix.systemwideinterfaces.core.IMendixIdentifier;
 import com.mendix.systemwideinterfaces.core.IMendixObject;
 
 import au.com.bytecode.opencsv.CSVParser;
-import au.com.bytecode.opencsv.CSVWriter;
 import flatfilemanager.implementation.TemplateConfiguration.ColumnConfig;
-import flatfilemanager.proxies.DataSource;
-import flatfilemanager.proxies.Field;
-import mxmodelreflection.proxies.MxObjectMember;
-import mxmodelreflection.proxies.MxObjectReference;
-import mxmodelreflection.proxies.MxObjectType;
 import replication.MetaInfo;
 import replication.ReplicationSettings.MendixReplicationException;
 import replication.ValueParser;
@@ -31,7 +31,10 @@ import replication.implementation.CustomReplicationSettings;
 public class DelimitedLineHandler extends ILineHandler {
 
 	private ILogNode logger = Core.getLogger("FlatFileExport");
-	private Writer writer;
+	private DelimitedLineWriter lineWriter;
+	private String[] entries;
+	private int importThreads = 1;
+	private int importChunkSize = 1000;
 
 	public DelimitedLineHandler() {
 	}
@@ -39,8 +42,10 @@ public class DelimitedLineHandler extends ILineHandler {
 	@Override
 	public void initialize(IContext context, Writer writer, TemplateConfiguration config) {
 		this.context = context;
-		this.writer = writer;
 		this.config = config;
+
+		this.lineWriter = new DelimitedLineWriter(writer, config.getDelimiter(), config.getQuoteChar(), config.getEscapeChar(), config.getLineEnd());
+		this.entries = new String[config.getColumnPlan().length];
 	}
 
 	@Override
@@ -51,49 +56,51 @@ public class DelimitedLineHandler extends ILineHandler {
 
 	@Override
 	public void writeLine(IMendixObject object) throws CoreException {
-		try {
-			CSVWriter writer = new CSVWriter(this.writer, this.config.getDelimiter(), this.config.getQuoteChar(), this.config.getEscapeChar(), this.config.getLineEnd());
-
-			String[] entries = this.getLineContent(object);
-
-			writer.writeNext(entries);
-			// writer.close();
-		}
-		catch (IOException e) {
-			throw new CoreException(e);
-		}
+		this.writeValues(this.getValues(object));
 	}
 
-	private String[] getLineContent(IMendixObject object) throws CoreException, IOException {
-
-		
+	@Override
+	public void writeValues(Object[] values) throws CoreException {
+		if (this.aggregates != null)
+			this.aggregates.add(this.config, values);
 
-		String[] entries = new String[this.config.getColumns().size()];
+		String[] entries = this.entries;
 		int i = -1;
-		for (Entry<Integer, ColumnConfig> entry : this.config.getColumns().entrySet()) {
-			ColumnConfig config = entry.getValue();
-			IMendixObject column = config.getColumnObj();
-			DataSource source = DataSource.valueOf((String) column.getValue(this.context, Field.MemberNames.DataSource.toString()));
-//			Integer colNr = entry.getKey();
-			
+		ColumnConfig[] columnPlan = this.config.getColumnPlan();
+		for (int col = 0; col < columnPlan.length; col++) {
+			ColumnConfig config = columnPlan[col];
 			String value = null;
-			switch (source) {
+			switch (config.getValueSource()) {
 			case Attribute:
-				value = (String) this.getValueFromAttribute(column, object);
+				value = ValueParser.getTrimmedValue(values[col], null, null);
+				if (value == null)
+					value = "";
 				break;
 			case Reference:
-				value = (String) this.getValueFromReference(column, object);
+				value = (values[col] == null || values[col] == NO_REFERENCED_OBJECT ? "" : String.valueOf(values[col]));
 				break;
 			case StaticValue:
-				value = (String) column.getValue(this.context, Field.MemberNames.StaticValue.toString());
+				if (this.isAggregate(config)) {
+					value = ValueParser.getTrimmedValue(this.getAggregateValue(config), null, config.getMask());
+					if (value == null)
+						value = "";
+				}
+				else
+					value = config.getStaticValue();
 				break;
 			case Newline:
 				continue;
 			}
 			entries[++i] = value;
 		}
+		Arrays.fill(entries, i + 1, entries.length, null);
 
-		return entries;
+		try {
+			this.lineWriter.writeNext(entries);
+		}
+		catch (IOException e) {
+			throw new CoreException(e);
+		}
 	}
 
 	@Override
@@ -105,56 +112,21 @@ public class DelimitedLineHandler extends ILineHandler {
 	
 		CustomReplicationSettings settings = initializeSettings(parameterObjectId, associationName);
 
-		Map<Integer,ColumnConfig> columns = this.config.getColumns();
-		
 		FFValueParser vparser = new FFValueParser(settings.getValueParsers(), settings);
 		MetaInfo info = new MetaInfo(settings, vparser, "DelimitedFileImport");
-		CSVParser parser = new CSVParser(this.config.getDelimiter(), this.config.getQuoteChar(), this.config.getEscapeChar(), false, true);
 
-		String nextLine;
-		String[] content;
-		int lineNumber = 0, colNr = 1;
-		while ((nextLine = reader.readLine()) != null) {
-			colNr = 1;
-			if (lineNumber != 0 || !this.config.headerOnFirstLine() ) {
-				content = parser.parseLine(nextLine);
-				if (content.length == 1)
-					content = parser.parseLine(content[0]);
-
-				for (Entry<Integer, ColumnConfig> entry : columns.entrySet() ) {
-					try {
-						ColumnConfig cConfig = entry.getValue();
-						colNr = entry.getKey();
-						
-						String alias = cConfig.getDescription();
-						if (this.logger.isDebugEnabled())
-							this.logger.debug(alias + " - NrOfValues" + content.length);
-						
-						
-						if (colNr <= content.length) {
-							switch (cConfig.getValueSource()) {
-							case Attribute:
-							case Reference:
-								String fieldAlias = String.valueOf(colNr);
-								
-								info.addValue(String.valueOf(lineNumber), fieldAlias, vparser.getValue(settings.getMemberType(fieldAlias), fieldAlias, content[colNr-1]));
-								break;
-							case Newline:
-								break;
-							case StaticValue:
-								break;
-							}
-						}
-						else {
-							break;
-						}
-					}
-					catch (Exception e) {
-						throw new CoreException("Error occured while processing line: " + (1 + lineNumber) + ", the error was: " + e.getMessage(), e);
-					}
-				}
+		if (this.importThreads > 1 && !this.config.usesMicroflows() && settings.getValueParsers().isEmpty())
+			importInParallel(reader, settings, vparser, info);
+		else {
+			CSVParser parser = new CSVParser(this.config.getDelimiter(), this.config.getQuoteChar(), this.config.getEscapeChar(), false, true);
+
+			String nextLine;
+			int lineNumber = 0;
+			while ((nextLine = reader.readLine()) != null) {
+				if (lineNumber != 0 || !this.config.headerOnFirstLine() )
+					addLine(info, parseLine(parser, settings, vparser, nextLine, lineNumber));
+				lineNumber++;
 			}
-			lineNumber++;
 		}
 
 		try {
@@ -168,62 +140,173 @@ public class DelimitedLineHandler extends ILineHandler {
 		}
 	}
 
+	/**
+	 * Parse the lines with the import threads. Each line is a separate record, so the file is split into chunks of whole
+	 * lines. The chunks are tokenized and converted at the same time, the calling thread reads the next chunks and adds
+	 * the converted values of the parsed chunks in the order of the file.
+	 */
+	private void importInParallel(BufferedReader reader, CustomReplicationSettings settings, FFValueParser vparser, MetaInfo info) throws CoreException, IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(this.importThreads, new FileHandler.ExportThreadFactory("FlatFileImport-Parse"));
+		try {
+			// Limit the nr of chunks in memory, reading continues while the oldest chunk is being parsed
+			int maxPending = this.importThreads * 2;
+			Deque<Future<List<ParsedLine>>> pending = new ArrayDeque<Future<List<ParsedLine>>>();
+
+			int lineNumber = 0;
+			List<String> chunk;
+			while (!(chunk = readChunk(reader)).isEmpty()) {
+				pending.add(executor.submit(new ChunkParser(settings, vparser, chunk, lineNumber)));
+				lineNumber += chunk.size();
+
+				while (pending.size() >= maxPending)
+					addLines(info, FileHandler.waitFor(pending.poll()));
+			}
 
-//	private PrimitiveType determineRenderType(IMendixObject columnObject) {
-//		FieldDataType dataType = FieldDataType.valueOf((String) columnObject.getValue(this.context, Field.MemberNames.FormatAsDataType.toString()));
-//		switch (dataType) {
-//		case DecimalType:
-//			return PrimitiveType.Decimal;
-//		case IntegerType:
-//			return PrimitiveType.Long;
-//		case StringType:
-//		default:
-//			return PrimitiveType.String;
-//		}
-//	}
+			while (!pending.isEmpty())
+				addLines(info, FileHandler.waitFor(pending.poll()));
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
 
-	private Object getValueFromReference(IMendixObject highlightObject, IMendixObject exportObject) throws CoreException {
-		List<IMendixObject> referenceResult = this.getResultByHighlight(highlightObject, exportObject, 1);
+	private List<String> readChunk(BufferedReader reader) throws IOException {
+		List<String> chunk = new ArrayList<String>(this.importChunkSize);
+		String nextLine;
+		while (chunk.size() < this.importChunkSize && (nextLine = reader.readLine()) != null)
+			chunk.add(nextLine);
 
-		return this.getValueFromReference(referenceResult, highlightObject, 0);
+		return chunk;
 	}
 
-	private Object getValueFromReference(List<IMendixObject> referenceResult, IMendixObject columnObject, int listPosition) throws CoreException {
-		Object value = "";
+	private class ChunkParser implements Callable<List<ParsedLine>> {
+		private CustomReplicationSettings settings;
+		private FFValueParser vparser;
+		private List<String> lines;
+		private int firstLineNumber;
+
+		private ChunkParser(CustomReplicationSettings settings, FFValueParser vparser, List<String> lines, int firstLineNumber) {
+			this.settings = settings;
+			this.vparser = vparser;
+			this.lines = lines;
+			this.firstLineNumber = firstLineNumber;
+		}
 
-		if (referenceResult.size() > listPosition) {
-			IMendixObject referencedObject = referenceResult.get(listPosition);
-			IMendixObject member = Core.retrieveId(this.context, (IMendixIdentifier) columnObject.getValue(this.context, Field.MemberNames.Field_MxObjectMember.toString()));
-			String memberName = (String) member.getValue(this.context, MxObjectMember.MemberNames.AttributeName.toString());
+		@Override
+		public List<ParsedLine> call() throws CoreException, IOException {
+			// The parser keeps state while parsing a line, so every chunk uses its own parser
+			CSVParser parser = new CSVParser(DelimitedLineHandler.this.config.getDelimiter(), DelimitedLineHandler.this.config.getQuoteChar(), DelimitedLineHandler.this.config.getEscapeChar(), false, true);
 
-			value = referencedObject.getValue(this.context, memberName);
-		}
+			List<ParsedLine> parsedLines = new ArrayList<ParsedLine>(this.lines.size());
+			for (int i = 0; i < this.lines.size(); i++) {
+				int lineNumber = this.firstLineNumber + i;
+				if (lineNumber != 0 || !DelimitedLineHandler.this.config.headerOnFirstLine())
+					parsedLines.add(parseLine(parser, this.settings, this.vparser, this.lines.get(i), lineNumber));
+			}
 
-		if (value == null)
-			return "";
+			return parsedLines;
+		}
+	}
 
-		return value;
+	/**
+	 * The converted values of a single line, in the order of the columns
+	 */
+	private static class ParsedLine {
+		private int lineNumber;
+		private String[] aliases;
+		private Object[] values;
+		private int size = 0;
 	}
 
-	public List<IMendixObject> getResultByHighlight(IMendixObject columnObject, IMendixObject exportObject, int limit) throws CoreException {
-		IMendixObject reference = Core.retrieveId(this.context, (IMendixIdentifier) columnObject.getValue(this.context, Field.MemberNames.Field_MxObjectReference.toString()));
-		IMendixObject objectType = Core.retrieveId(this.context, (IMendixIdentifier) columnObject.getValue(this.context, Field.MemberNames.Field_MxObjectType_Reference.toString()));
+	/**
+	 * Tokenize the line and convert the values of all Attribute and Reference columns
+	 */
+	private ParsedLine parseLine(CSVParser parser, CustomReplicationSettings settings, FFValueParser vparser, String nextLine, int lineNumber) throws CoreException, IOException {
+		Map<Integer,ColumnConfig> columns = this.config.getColumns();
 
-		String referenceName = (String) reference.getValue(this.context, MxObjectReference.MemberNames.CompleteName.toString()), objectTypeName = (String) objectType.getValue(this.context, MxObjectType.MemberNames.CompleteName.toString());
+		String[] content = parser.parseLine(nextLine);
+		if (content.length == 1)
+			content = parser.parseLine(content[0]);
+
+		ParsedLine line = new ParsedLine();
+		line.lineNumber = lineNumber;
+		line.aliases = new String[columns.size()];
+		line.values = new Object[columns.size()];
+
+		for (Entry<Integer, ColumnConfig> entry : columns.entrySet() ) {
+			try {
+				ColumnConfig cConfig = entry.getValue();
+				int colNr = entry.getKey();
+				
+				String alias = cConfig.getDescription();
+				if (this.logger.isDebugEnabled())
+					this.logger.debug(alias + " - NrOfValues" + content.length);
+				
+				
+				if (colNr <= content.length) {
+					switch (cConfig.getValueSource()) {
+					case Attribute:
+					case Reference:
+						String fieldAlias = String.valueOf(colNr);
+
+						line.aliases[line.size] = fieldAlias;
+						line.values[line.size++] = vparser.getValue(settings.getMemberType(fieldAlias), fieldAlias, content[colNr-1]);
+						break;
+					case Newline:
+						break;
+					case StaticValue:
+						break;
+					}
+				}
+				else {
+					break;
+				}
+			}
+			catch (Exception e) {
+				throw new CoreException("Error occured while processing line: " + (1 + lineNumber) + ", the error was: " + e.getMessage(), e);
+			}
+		}
 
-		HashMap<String, String> sortMap = new HashMap<String, String>();
-		sortMap.put("createdDate", "ASC");
-		return Core.retrieveXPathQuery(this.context, "//" + objectTypeName + "[" + referenceName + "='" + exportObject.getId().toLong() + "']", limit, 0, sortMap);
+		return line;
 	}
 
-	private Object getValueFromAttribute(IMendixObject columnObject, IMendixObject exportObject) throws CoreException {
-		IMendixObject member = Core.retrieveId(this.context, (IMendixIdentifier) columnObject.getValue(this.context, Field.MemberNames.Field_MxObjectMember.toString()));
-		Object value = exportObject.getValue(this.context, (String) member.getValue(this.context, MxObjectMember.MemberNames.AttributeName.toString()));
+	private static void addLines(MetaInfo info, List<ParsedLine> lines) throws CoreException {
+		for (ParsedLine line : lines)
+			addLine(info, line);
+	}
 
-		Object strValue = ValueParser.getTrimmedValue(value, null, null);
-		if (strValue == null)
-			return "";
+	private static void addLine(MetaInfo info, ParsedLine line) throws CoreException {
+		String objectKey = String.valueOf(line.lineNumber);
+		for (int i = 0; i < line.size; i++) {
+			try {
+				info.addValue(objectKey, line.aliases[i], line.values[i]);
+			}
+			catch (Exception e) {
+				throw new CoreException("Error occured while processing line: " + (1 + line.lineNumber) + ", the error was: " + e.getMessage(), e);
+			}
+		}
+	}
 
-		return strValue;
+	/**
+	 * Parse the lines of the import with multiple threads, chunkSize lines at once. Only used when the template
+	 * doesn't parse any values with a microflow.
+	 */
+	public void setImportThreads(int importThreads, int chunkSize) {
+		this.importThreads = importThreads;
+		this.importChunkSize = Math.max(1, chunkSize);
 	}
+
+
+//	private PrimitiveType determineRenderType(IMendixObject columnObject) {
+//		FieldDataType dataType = FieldDataType.valueOf((String) columnObject.getValue(this.context, Field.MemberNames.FormatAsDataType.toString()));
+//		switch (dataType) {
+//		case DecimalType:
+//			return PrimitiveType.Decimal;
+//		case IntegerType:
+//			return PrimitiveType.Long;
+//		case StringType:
+//		default:
+//			return PrimitiveType.String;
+//		}
+//	}
 }
@@ -0,0 +1,113 @@
+package flatfilemanager.implementation;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Writes delimited lines in exactly the same format as the opencsv CSVWriter: every value that isn't null is quoted,
+ * and quote and escape characters inside a value are prefixed with the escape character.
+ *
+ * The writer is kept for the entire export and re-uses its line buffer, each line is written to the underlying writer
+ * in a single call. Values that contain none of the characters that must be escaped are copied without further
+ * processing.
+ */
+public class DelimitedLineWriter {
+
+	/** Same as CSVWriter.NO_QUOTE_CHARACTER and CSVWriter.NO_ESCAPE_CHARACTER */
+	private static final char NO_CHARACTER = '\u0000';
+
+	private Writer writer;
+	private char separator;
+	private char quoteChar;
+	private char escapeChar;
+	private char[] lineEnd;
+
+	/** Indexed by character, true for all characters that must be escaped */
+	private boolean[] escapedCharacters;
+	private char[] line = new char[256];
+	private int lineLength;
+
+	public DelimitedLineWriter( Writer writer, char separator, char quoteChar, char escapeChar, String lineEnd ) {
+		this.writer = writer;
+		this.separator = separator;
+		this.quoteChar = quoteChar;
+		this.escapeChar = escapeChar;
+		this.lineEnd = lineEnd.toCharArray();
+
+		this.escapedCharacters = new boolean[Math.max(quoteChar, escapeChar) + 1];
+		this.escapedCharacters[quoteChar] = true;
+		this.escapedCharacters[escapeChar] = true;
+	}
+
+	/**
+	 * Write all values as a single line, null values are left empty
+	 */
+	public void writeNext( String[] values ) throws IOException {
+		this.lineLength = 0;
+
+		for( int i = 0; i < values.length; i++ ) {
+			if ( i != 0 )
+				this.append(this.separator);
+
+			String value = values[i];
+			if ( value == null )
+				continue;
+
+			if ( this.quoteChar != NO_CHARACTER )
+				this.append(this.quoteChar);
+
+			int escapeFrom = this.findEscapedCharacter(value);
+			if ( escapeFrom < 0 )
+				this.append(value, 0, value.length());
+			else {
+				this.append(value, 0, escapeFrom);
+				this.appendEscaped(value, escapeFrom);
+			}
+
+			if ( this.quoteChar != NO_CHARACTER )
+				this.append(this.quoteChar);
+		}
+
+		this.ensureCapacity(this.lineEnd.length);
+		System.arraycopy(this.lineEnd, 0, this.line, this.lineLength, this.lineEnd.length);
+		this.lineLength += this.lineEnd.length;
+
+		this.writer.write(this.line, 0, this.lineLength);
+	}
+
+	private int findEscapedCharacter( String value ) {
+		for( int i = 0; i < value.length(); i++ ) {
+			char c = value.charAt(i);
+			if ( c < this.escapedCharacters.length && this.escapedCharacters[c] )
+				return i;
+		}
+
+		return -1;
+	}
+
+	private void appendEscaped( String value, int start ) {
+		for( int i = start; i < value.length(); i++ ) {
+			char c = value.charAt(i);
+			if ( this.escapeChar != NO_CHARACTER && (c == this.quoteChar || c == this.escapeChar) )
+				this.append(this.escapeChar);
+			this.append(c);
+		}
+	}
+
+	private void append( char c ) {
+		this.ensureCapacity(1);
+		this.line[this.lineLength++] = c;
+	}
+
+	private void append( String value, int start, int end ) {
+		this.ensureCapacity(end - start);
+		value.getChars(start, end, this.line, this.lineLength);
+		this.lineLength += end - start;
+	}
+
+	private void ensureCapacity( int additionalLength ) {
+		if ( this.lineLength + additionalLength > this.line.length )
+			this.line = Arrays.copyOf(this.line, Math.max(this.line.length * 2, this.lineLength + additionalLength));
+	}
+}
@@ -0,0 +1,279 @@
+package flatfilemanager.implementation;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.mendix.core.CoreException;
+
+import flatfilemanager.implementation.TemplateConfiguration.ColumnConfig;
+import replication.ValueParser;
+import replication.ValueParser.ParseException;
+
+/**
+ * Running totals over the lines that have been written during an export, so header and footer lines can contain
+ * record counts and control totals without querying the exported data again.
+ *
+ * An aggregate is configured as the static value of a column: {{agg:count:Template title}} for the nr of lines written
+ * with that template, or {{agg:sum:Template title:column nr}}, {{agg:min:..}} and {{agg:max:..}} over the values of a
+ * column of that template. Any other static value, {count:..} included, is still written as it is. The values are
+ * collected by the line handlers while the lines are written.
+ *
+ * The totals run over the whole export, they are not reset for each parent object. A footer in a sub template prints
+ * the total over all lines written so far, not only the lines of its parent.
+ *
+ * The title in an aggregate is resolved to the template with that title in the export once all templates have been
+ * registered, the totals are kept per template id. A title that matches no template or more than one template of the
+ * export is rejected, so a renamed or duplicate template doesn't silently produce a total of 0.
+ * Every thread that writes lines collects them in its own totals, these are only combined when the value of an
+ * aggregate is requested. That way the render and section threads never wait for each other.
+ */
+public class ExportAggregates {
+
+	private static final Pattern AGGREGATE_PATTERN = Pattern.compile("^\\{\\{agg:(count|sum|min|max):([^:}]+)(?::(\\d+))?\\}\\}$", Pattern.CASE_INSENSITIVE);
+
+	public enum Function {
+		Count, Sum, Min, Max
+	}
+
+	public static class Aggregate {
+		private Function function;
+		private String templateName;
+		private Integer colNumber;
+
+		private Aggregate( Function function, String templateName, Integer colNumber ) {
+			this.function = function;
+			this.templateName = templateName;
+			this.colNumber = colNumber;
+		}
+
+		public Function getFunction() {
+			return this.function;
+		}
+
+		public String getTemplateName() {
+			return this.templateName;
+		}
+
+		public Integer getColNumber() {
+			return this.colNumber;
+		}
+	}
+
+	/** The values of a single column */
+	private static class ColumnTotals {
+		private BigDecimal sum = BigDecimal.ZERO;
+		private Object min;
+		private Object max;
+
+		private void add( BigDecimal value, Object comparableValue ) {
+			if ( value != null )
+				this.sum = this.sum.add(value);
+			if ( this.min == null || compare(comparableValue, this.min) < 0 )
+				this.min = comparableValue;
+			if ( this.max == null || compare(comparableValue, this.max) > 0 )
+				this.max = comparableValue;
+		}
+	}
+
+	/** The totals collected by a single thread, only that thread adds lines to them */
+	private static class ThreadTotals {
+		private Map<Long, long[]> lineCounts = new HashMap<Long, long[]>();
+		private Map<String, ColumnTotals> columnTotals = new HashMap<String, ColumnTotals>();
+	}
+
+	/** The ids of the registered templates by their title */
+	private Map<String, Set<Long>> templateIds = new HashMap<String, Set<Long>>();
+	/** The aggregates used in the registered templates, validated by {@link #resolve()} */
+	private List<Aggregate> aggregates = new ArrayList<Aggregate>();
+	/** The template id for every title that is used in an aggregate */
+	private Map<String, Long> resolvedIds = new HashMap<String, Long>();
+	/** Only the columns that are used in an aggregate are collected, true when the column is summed */
+	private Map<String, Boolean> summedColumns = new HashMap<String, Boolean>();
+
+	private List<ThreadTotals> threadTotals = new CopyOnWriteArrayList<ThreadTotals>();
+	private ThreadLocal<ThreadTotals> currentTotals = new ThreadLocal<ThreadTotals>() {
+		@Override
+		protected ThreadTotals initialValue() {
+			ThreadTotals totals = new ThreadTotals();
+			ExportAggregates.this.threadTotals.add(totals);
+			return totals;
+		}
+	};
+
+	/**
+	 * @return the aggregate in the static value, or null when the value isn't an aggregate
+	 */
+	public static Aggregate parse( String staticValue ) {
+		if ( staticValue == null )
+			return null;
+
+		Matcher matcher = AGGREGATE_PATTERN.matcher(staticValue.trim());
+		if ( !matcher.matches() )
+			return null;
+
+		String functionName = matcher.group(1).toLowerCase();
+		Function function = Function.valueOf(Character.toUpperCase(functionName.charAt(0)) + functionName.substring(1));
+		Integer colNumber = (matcher.group(3) != null ? Integer.valueOf(matcher.group(3)) : null);
+		if ( function != Function.Count && colNumber == null )
+			return null;
+
+		return new Aggregate(function, matcher.group(2).trim(), colNumber);
+	}
+
+	/**
+	 * Register a template of the export, all templates have to be registered before the aggregates are resolved
+	 */
+	public void register( TemplateConfiguration config ) {
+		if ( config.getTemplateName() != null ) {
+			String title = String.valueOf(config.getTemplateName());
+			Set<Long> ids = this.templateIds.get(title);
+			if ( ids == null ) {
+				ids = new HashSet<Long>();
+				this.templateIds.put(title, ids);
+			}
+			ids.add(config.getId());
+		}
+
+		for( ColumnConfig column : config.getColumnPlan() ) {
+			if ( column.getAggregate() != null )
+				this.aggregates.add(column.getAggregate());
+		}
+	}
+
+	/**
+	 * Resolve the titles in the aggregates of all registered templates to their template, and start collecting the
+	 * values of the columns that are used. This has to be done before any line is added.
+	 *
+	 * @throws CoreException when a title doesn't match exactly one template of the export
+	 */
+	public void resolve() throws CoreException {
+		for( Aggregate aggregate : this.aggregates ) {
+			Set<Long> ids = this.templateIds.get(aggregate.templateName);
+			if ( ids == null )
+				throw new CoreException("Unable to aggregate over template: " + aggregate.templateName + ", there is no template with this title in the export");
+			if ( ids.size() > 1 )
+				throw new CoreException("Unable to aggregate over template: " + aggregate.templateName + ", there are " + ids.size() + " templates with this title in the export");
+
+			Long templateId = ids.iterator().next();
+			this.resolvedIds.put(aggregate.templateName, templateId);
+			if ( aggregate.function == Function.Count )
+				continue;
+
+			String columnKey = getColumnKey(templateId, aggregate.colNumber);
+			Boolean summed = this.summedColumns.get(columnKey);
+			this.summedColumns.put(columnKey, (aggregate.function == Function.Sum || Boolean.TRUE.equals(summed)));
+		}
+	}
+
+	private static String getColumnKey( Long templateId, Integer colNumber ) {
+		return templateId + ":" + colNumber;
+	}
+
+	/**
+	 * Add a line that has been written with the template, to the totals of the current thread
+	 *
+	 * @param values the values of the line, in the order of the column plan
+	 */
+	public void add( TemplateConfiguration config, Object[] values ) throws CoreException {
+		ThreadTotals threadTotals = this.currentTotals.get();
+		// Only the current thread adds to its totals, the lock only waits when the value of an aggregate is requested
+		synchronized (threadTotals) {
+			long[] count = threadTotals.lineCounts.get(config.getId());
+			if ( count == null )
+				threadTotals.lineCounts.put(config.getId(), new long[] { 1 });
+			else
+				count[0]++;
+
+			if ( this.summedColumns.isEmpty() )
+				return;
+
+			ColumnConfig[] columnPlan = config.getColumnPlan();
+			for( int i = 0; i < columnPlan.length; i++ ) {
+				String columnKey = getColumnKey(config.getId(), columnPlan[i].getColNumber());
+				Boolean summed = this.summedColumns.get(columnKey);
+				Object value = values[i];
+				if ( summed == null || value == null || value == ILineHandler.NO_REFERENCED_OBJECT )
+					continue;
+
+				try {
+					BigDecimal decimalValue = null;
+					if ( value instanceof Number || (value instanceof String && summed) ) {
+						decimalValue = ValueParser.getBigDecimalValue(value);
+						if ( decimalValue == null )
+							continue;
+					}
+
+					ColumnTotals totals = threadTotals.columnTotals.get(columnKey);
+					if ( totals == null ) {
+						totals = new ColumnTotals();
+						threadTotals.columnTotals.put(columnKey, totals);
+					}
+					totals.add(decimalValue, (decimalValue != null ? decimalValue : value));
+				}
+				catch( ParseException e ) {
+					throw new CoreException("Unable to aggregate field: " + config.getTemplateName() + " - " + columnPlan[i].getColNumber() + " with value: " + value, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the current value of the aggregate over the totals of all threads, null when no values have been collected
+	 */
+	public Object getValue( Aggregate aggregate ) {
+		Long templateId = this.resolvedIds.get(aggregate.templateName);
+		if ( aggregate.function == Function.Count ) {
+			long count = 0;
+			for( ThreadTotals threadTotals : this.threadTotals ) {
+				synchronized (threadTotals) {
+					long[] threadCount = threadTotals.lineCounts.get(templateId);
+					if ( threadCount != null )
+						count += threadCount[0];
+				}
+			}
+			return count;
+		}
+
+		String columnKey = getColumnKey(templateId, aggregate.colNumber);
+		ColumnTotals totals = null;
+		for( ThreadTotals threadTotals : this.threadTotals ) {
+			synchronized (threadTotals) {
+				ColumnTotals threadColumnTotals = threadTotals.columnTotals.get(columnKey);
+				if ( threadColumnTotals == null )
+					continue;
+
+				if ( totals == null )
+					totals = new ColumnTotals();
+				totals.add(threadColumnTotals.sum, threadColumnTotals.min);
+				totals.add(null, threadColumnTotals.max);
+			}
+		}
+		if ( totals == null )
+			return null;
+
+		switch (aggregate.function) {
+		case Sum:
+			return totals.sum;
+		case Min:
+			return totals.min;
+		default:
+			return totals.max;
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static int compare( Object value, Object other ) {
+		if ( value instanceof Comparable && value.getClass() == other.getClass() )
+			return ((Comparable) value).compareTo(other);
+
+		return String.valueOf(value).compareTo(String.valueOf(other));
+	}
+}
@@ -0,0 +1,94 @@
+package flatfilemanager.implementation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+import com.mendix.core.Core;
+import com.mendix.core.CoreException;
+import com.mendix.systemwideinterfaces.core.IContext;
+import com.mendix.systemwideinterfaces.core.IMendixObject;
+
+/**
+ * Compresses files while they are being written, so the uncompressed content never has to be kept in memory or on disk.
+ */
+public class ExportCompression {
+
+	public enum Format {
+		None, Zip, GZip
+	}
+
+	/** The size of the buffer between the file document and the compressor */
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final String ZIP_EXTENSION = ".zip", GZIP_EXTENSION = ".gz";
+
+	/**
+	 * @param level the compression level from 0 to 9, or -1 for the default level
+	 * @param entryName the name of the file inside a zip file
+	 * @return the stream that compresses everything written to it into the output stream, closing it closes the output stream
+	 */
+	public static OutputStream compress( OutputStream out, Format format, final int level, String entryName ) throws IOException {
+		switch (format) {
+		case Zip:
+			ZipOutputStream zipOut = new ZipOutputStream(out);
+			zipOut.setLevel(level);
+			zipOut.putNextEntry(new ZipEntry(entryName));
+			return zipOut;
+		case GZip:
+			return new GZIPOutputStream(out, BUFFER_SIZE) {
+				{
+					this.def.setLevel(level);
+				}
+			};
+		default:
+			return out;
+		}
+	}
+
+	/**
+	 * @return the file name without the extension of the compression format, used as the name of the zip entry
+	 */
+	public static String getEntryName( String fileName, Format format ) {
+		if ( fileName == null || fileName.isEmpty() )
+			return "export";
+
+		String extension = (format == Format.GZip ? GZIP_EXTENSION : ZIP_EXTENSION);
+		if ( fileName.length() > extension.length() && fileName.toLowerCase().endsWith(extension) )
+			return fileName.substring(0, fileName.length() - extension.length());
+
+		return fileName;
+	}
+
+	/**
+	 * Zip the content of the source document into the target document, the content is read, compressed and stored
+	 * through buffers with a fixed size. The source is opened with the context before the content is stored with it,
+	 * the compressing thread only reads the stream.
+	 */
+	public static void zipFileDocument( IContext context, IMendixObject source, IMendixObject target, final String entryName, String fileName ) throws CoreException {
+		final InputStream in = Core.getFileDocumentContent(context, source);
+		try {
+			new StreamingFileDocument() {
+				@Override
+				protected void write( OutputStream out ) throws Exception {
+					OutputStream zipOut = compress(out, Format.Zip, Deflater.DEFAULT_COMPRESSION, entryName);
+					try {
+						IOUtils.copyLarge(in, zipOut, new byte[BUFFER_SIZE]);
+						zipOut.close();
+					}
+					finally {
+						IOUtils.closeQuietly(zipOut);
+					}
+				}
+			}.store(context, target, fileName, BUFFER_SIZE);
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+}
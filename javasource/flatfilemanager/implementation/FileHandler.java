@@ -1,23 +1,42 @@
 package flatfilemanager.implementation;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
 import java.io.BufferedReader;
+import java.io.CharArrayWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
 
 import org.apache.commons.io.IOUtils;
+import org.sadun.text.ffp.ConstantFoundInLineCondition;
+import org.sadun.text.ffp.DispatcherListener;
+import org.sadun.text.ffp.FFPParseException;
+import org.sadun.text.ffp.FlatFileParser;
+import org.sadun.text.ffp.LineFormat;
 
-import com.ibm.icu.text.CharsetDetector;
-import com.ibm.icu.text.CharsetMatch;
 import com.mendix.core.Core;
 import com.mendix.core.CoreException;
 import com.mendix.logging.ILogNode;
@@ -25,24 +44,136 @@ import com.mendix.systemwideinterfaces.core.IContext;
 import com.mendix.systemwideinterfaces.core.IMendixIdentifier;
 import com.mendix.systemwideinterfaces.core.IMendixObject;
 
+import flatfilemanager.proxies.Field;
+import flatfilemanager.proxies.FormatType;
 import flatfilemanager.proxies.ReferenceOrObject;
 import flatfilemanager.proxies.TemplateReference;
 import mxmodelreflection.proxies.MxObjectMember;
 import mxmodelreflection.proxies.MxObjectReference;
 import mxmodelreflection.proxies.MxObjectType;
+import replication.helpers.WorkerContext;
 
 public class FileHandler {
 
+	public class Configuration {
+
+		/** VALUE: 1000 Nr of associated objects which are retrieved and exported per page */
+		public int RetrievePage_Limit = 1000;
+		/**
+		 * VALUE: false Continue each page after the sort value and id of the previous page instead of using an offset.
+		 * This keeps the retrieval time per page constant on large exports, objects without a sort value are exported last.
+		 * Objects sorted on a DateTime attribute are always retrieved with an offset.
+		 */
+		public boolean KeysetPagination = false;
+		/**
+		 * VALUE: 1 Nr of threads that render the lines of each page. When more than 1 thread is used the next page is
+		 * retrieved while the current page is rendered, the lines are always written in the original order. Templates
+		 * that parse values with a microflow are always rendered on the calling thread.
+		 * The retrieval and render threads each use a context of their own for the same user, they don't see objects
+		 * that have been created or changed in the transaction of the calling microflow but aren't committed yet.
+		 */
+		public int RenderThreads = 1;
+		/** VALUE: 100 Nr of lines rendered by a thread at once */
+		public int RenderBatchSize = 100;
+		/**
+		 * VALUE: 1 Nr of template references in the template set that are exported at the same time. The template
+		 * references after the first are exported into separate temporary files, which are appended to the export in
+		 * the order of the template references. A template reference that parses values with a microflow is exported
+		 * on the calling thread after all template references before it, the template references after it wait for it.
+		 * Every other template reference is exported on a thread with a context of its own for the same user, it
+		 * doesn't see objects that have been created or changed in the transaction of the calling microflow but aren't
+		 * committed yet.
+		 */
+		public int SectionThreads = 1;
+		/**
+		 * VALUE: false Store the export in the file document while it is being generated, without writing a temporary
+		 * file first. When disabled the export is written to a unique temporary file which is stored afterwards.
+		 * A streamed export is generated on a separate thread with a context of its own for the same user, it doesn't
+		 * see objects that have been created or changed in the transaction of the calling microflow but aren't
+		 * committed yet. The file document is stored in the transaction of the calling microflow.
+		 */
+		public boolean StreamExport = false;
+		/** VALUE: 1048576 Nr of bytes that can be buffered between generating and storing a streamed export */
+		public int StreamBufferSize = 1024 * 1024;
+		/**
+		 * VALUE: false Retrieve the objects of the sub templates for an entire page of parent objects at once, instead of
+		 * querying them for every parent. This is done recursively, the lines are written in the same order.
+		 * Sub templates where the parent object owns the association are still retrieved per parent object. At most
+		 * RetrievePage_Limit objects are retrieved at once for each sub template, the objects of the parents after that
+		 * are retrieved per parent object.
+		 */
+		public boolean BatchSubTemplates = false;
+		/**
+		 * VALUE: false Export templates without sub templates with an OQL query that only selects the exported
+		 * attributes, Reference columns are joined into the query. Templates that use microflows or refer to more than
+		 * one object over a Reference column are still exported from the retrieved objects.
+		 */
+		public boolean ProjectionExport = false;
+		/**
+		 * VALUE: true Share the compiled template configurations with all other imports and exports. A shared
+		 * configuration is only used when neither the template nor its fields have changed since it was compiled, this
+		 * requires Template and Field to store their changed date.
+		 */
+		public boolean UseTemplateCache = true;
+		/** VALUE: 65536 Nr of characters that are buffered before they are written to the export file */
+		public int WriteBufferSize = 64 * 1024;
+		/** VALUE: None Compress the export while it is written, as a Zip file with a single entry or as a GZip file */
+		public ExportCompression.Format Compression = ExportCompression.Format.None;
+		/** VALUE: -1 The compression level, from 0 (no compression) to 9 (best compression), -1 uses the default level */
+		public int CompressionLevel = Deflater.DEFAULT_COMPRESSION;
+		/** VALUE: null The name of the file inside the Zip file, by default the file name without the .zip extension */
+		public String CompressionEntryName = null;
+		/**
+		 * VALUE: 1 Nr of threads that parse the lines of a delimited import. The file is read in chunks of lines which
+		 * are tokenized and converted at the same time, the values are added to the import in the order of the file.
+		 * Templates that parse values with a microflow are always imported on the calling thread.
+		 */
+		public int ImportThreads = 1;
+		/** VALUE: 1000 Nr of lines parsed by a thread at once */
+		public int ImportChunkSize = 1000;
+		/**
+		 * VALUE: null The character set of imported files. When empty the character set is determined from the byte order
+		 * mark, or from the first part of the file: UTF-8 when that is valid UTF-8, otherwise the best match of the detector.
+		 */
+		public String ImportCharset = null;
+		/**
+		 * VALUE: false Import a fixed length file by mapping it into memory, the records are decoded on the import threads
+		 * ImportChunkSize records at once. The file is copied to the temp path first. Files with records that don't all
+		 * have the width of the template, or that use a multi byte character set, are imported line by line.
+		 */
+		public boolean MappedImport = false;
+	}
+
+	public final Configuration Configuration;
+
+	/** The number of parent objects that is combined in a single sub template query */
+	private static final int SUBTEMPLATE_PARENTS_PER_QUERY = 250;
+
 	private HashMap<Long, TemplateConfiguration> config = new HashMap<Long, TemplateConfiguration>();
 	private ILogNode logger = Core.getLogger("FlatFileExport");
 	private IContext context;
 	private IMendixObject parameterObject;
 	private IMendixObject templateConfig;
+	private ExecutorService retrievalExecutor;
+	private ExecutorService renderExecutor;
+	/** The context of the retrieval thread, the context of the calling thread is never used by another thread */
+	private IContext retrievalContext;
+	/** The context of each render thread */
+	private ThreadLocal<IContext> renderContexts;
+	/** The running totals of the export that is being written, null when none of the templates uses aggregates */
+	private ExportAggregates aggregates;
+	/** The projection query for each template reference, null when the template reference can't use a projection */
+	private Map<Long, ProjectionQuery> projectionQueries = Collections.synchronizedMap(new HashMap<Long, ProjectionQuery>());
+	/** The line handlers for each template, per writer the export is written to */
+	private Map<Writer, Map<Long, ILineHandler>> lineHandlers = new IdentityHashMap<Writer, Map<Long, ILineHandler>>();
 
-	private TemplateConfiguration getTemplateConfig( IMendixObject template ) throws CoreException {
+	private synchronized TemplateConfiguration getTemplateConfig( IContext context, IMendixObject template ) throws CoreException {
 		Long id = template.getId().toLong();
 		if ( !this.config.containsKey(id) ) {
-			this.config.put(id, new TemplateConfiguration(this.context, template));
+			if ( this.Configuration.UseTemplateCache )
+				this.config.put(id, TemplateConfigurationCache.getTemplateConfig(context, template));
+			else
+				this.config.put(id, new TemplateConfiguration(context, template));
 		}
 
 		return this.config.get(id);
@@ -52,49 +183,413 @@ public class FileHandler {
 		this.context = context;
 		this.templateConfig = exportConfig;
 		this.parameterObject = parameterObject;
+		this.Configuration = new Configuration();
+	}
+
+	/**
+	 * A handler for the same template set and parameter object that uses another context, the configuration is shared
+	 */
+	private FileHandler( FileHandler handler, IContext context ) {
+		this.context = context;
+		this.templateConfig = handler.templateConfig;
+		this.parameterObject = handler.parameterObject;
+		this.Configuration = handler.Configuration;
 	}
 
+	/**
+	 * Export the template set into a new temporary file, the file is removed again when the returned stream is closed
+	 */
 	public FileInputStream exportToFile() throws CoreException {
-		File tmpFile = new File(Core.getConfiguration().getTempPath().getAbsolutePath() + "/" + this.parameterObject.getId().toLong());
+		return exportToFile(getEntryName(null));
+	}
+
+	private FileInputStream exportToFile( String entryName ) throws CoreException {
+		try {
+			File tmpFile = File.createTempFile("FlatFileExport-" + this.parameterObject.getId().toLong() + "-", ".tmp", Core.getConfiguration().getTempPath());
+			try {
+				writeExport(new FileOutputStream(tmpFile), entryName);
+
+				return new TempFileInputStream(tmpFile);
+			}
+			catch( CoreException | IOException e ) {
+				tmpFile.delete();
+				throw e;
+			}
+		}
+		catch( IOException e ) {
+			throw new CoreException(e);
+		}
+	}
 
+	/**
+	 * Export the template set and store the result as the content of the file document.
+	 * When streaming is enabled the content is generated on a separate thread and stored while it is being generated,
+	 * otherwise the export is written to a temporary file first. The separate thread uses a context of its own, the
+	 * context of this handler stores the content at the same time.
+	 */
+	public void exportToFileDocument( IMendixObject fileDocument, String fileName ) throws CoreException {
+		if ( !this.Configuration.StreamExport ) {
+			FileInputStream content = exportToFile(getEntryName(fileName));
+			try {
+				Core.storeFileDocumentContent(this.context, fileDocument, fileName, content);
+			}
+			finally {
+				IOUtils.closeQuietly(content);
+			}
+			return;
+		}
+
+		final String entryName = getEntryName(fileName);
+		final FileHandler producer = new FileHandler(this, WorkerContext.create(this.context));
+		new StreamingFileDocument() {
+			@Override
+			protected void write( OutputStream out ) throws Exception {
+				producer.writeExport(out, entryName);
+			}
+		}.store(this.context, fileDocument, fileName, this.Configuration.StreamBufferSize);
+	}
+
+	private String getEntryName( String fileName ) {
+		if ( this.Configuration.CompressionEntryName != null && !this.Configuration.CompressionEntryName.isEmpty() )
+			return this.Configuration.CompressionEntryName;
+
+		return ExportCompression.getEntryName(fileName, this.Configuration.Compression);
+	}
+
+	/**
+	 * Write the complete export, in UTF-8, to the output stream. The stream is closed when the export is finished.
+	 * When compression is enabled the export is compressed while it is being written.
+	 */
+	private void writeExport( OutputStream out, String entryName ) throws CoreException {
 		HashMap<String, String> sortmap = new HashMap<String, String>();
 		sortmap.put(TemplateReference.MemberNames.OrderNr.toString(), "ASC");
 		List<IMendixObject> sortedList = Core.retrieveXPathQuery(this.context, "//" + TemplateReference.getType() + 
 				"[" + TemplateReference.MemberNames.TemplateReference_TemplateSet + "=" + this.templateConfig.getId().toLong() + "]",
 				Integer.MAX_VALUE, 0, sortmap);
+		Writer writer = null;
 		try {
-			FileOutputStream out = new FileOutputStream(tmpFile);
-			OutputStreamWriter writer = new OutputStreamWriter(out, "UTF-8");
-
-			for( IMendixObject templateRef : sortedList ) {
-				processTemplateReference(writer, templateRef, this.parameterObject);
+			this.aggregates = createAggregates(sortedList);
+			if ( this.Configuration.RenderThreads > 1 ) {
+				this.retrievalExecutor = Executors.newSingleThreadExecutor(new ExportThreadFactory("FlatFileExport-Retrieval"));
+				this.renderExecutor = Executors.newFixedThreadPool(this.Configuration.RenderThreads, new ExportThreadFactory("FlatFileExport-Render"));
+				this.retrievalContext = WorkerContext.create(this.context);
+				final IContext context = this.context;
+				this.renderContexts = new ThreadLocal<IContext>() {
+					@Override
+					protected IContext initialValue() {
+						return WorkerContext.create(context);
+					}
+				};
 			}
+
+			out = ExportCompression.compress(out, this.Configuration.Compression, this.Configuration.CompressionLevel, entryName);
+			writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), this.Configuration.WriteBufferSize);
+
+			writeSections(writer, out, sortedList);
 			writer.flush();
 			writer.close();
-
-			FileInputStream result = new FileInputStream(tmpFile);
-			return result;
 		}
 		catch( IOException e ) {
 			throw new CoreException(e);
 		}
+		finally {
+			if ( writer != null )
+				removeLineHandlers(writer);
+			IOUtils.closeQuietly(writer);
+			IOUtils.closeQuietly(out);
+			this.aggregates = null;
+
+			if ( this.renderExecutor != null ) {
+				this.retrievalExecutor.shutdownNow();
+				this.renderExecutor.shutdownNow();
+				this.retrievalExecutor = null;
+				this.renderExecutor = null;
+				this.retrievalContext = null;
+				this.renderContexts = null;
+			}
+		}
+	}
+
+	/**
+	 * A template reference of the template set, with the sections that have to be exported before it
+	 */
+	private static class Section {
+		private IMendixObject templateRef;
+		/** The template or one of its sub templates uses aggregates, these need the totals of all other sections */
+		private boolean usesAggregates = false;
+		/** The template or one of its sub templates parses values with a microflow, these run on the calling thread */
+		private boolean usesMicroflows = false;
+		private List<Section> dependencies = new ArrayList<Section>();
+		/** The export into the spill file, null when the section is written directly */
+		private Future<File> export;
+	}
+
+	/**
+	 * Build the dependency graph of the template references, in the order of the template references.
+	 * A section with aggregates depends on every section without aggregates. A section with microflows depends on all
+	 * sections without aggregates before it, and the sections without aggregates after it depend on that section.
+	 * That way sections with microflows are exported in order, and all other sections only wait for the last section
+	 * with microflows before them.
+	 */
+	private List<Section> createSections( List<IMendixObject> templateRefs ) throws CoreException {
+		List<Section> sections = new ArrayList<Section>(templateRefs.size());
+		List<Section> withoutAggregates = new ArrayList<Section>();
+		Section lastWithMicroflows = null;
+		for( IMendixObject templateRef : templateRefs ) {
+			Section section = new Section();
+			section.templateRef = templateRef;
+			inspectSection(section, templateRef, new HashSet<Long>());
+			section.usesAggregates &= (this.aggregates != null);
+			sections.add(section);
+			if ( section.usesAggregates )
+				continue;
+
+			if ( section.usesMicroflows ) {
+				section.dependencies.addAll(withoutAggregates);
+				lastWithMicroflows = section;
+			}
+			else if ( lastWithMicroflows != null )
+				section.dependencies.add(lastWithMicroflows);
+			withoutAggregates.add(section);
+		}
+
+		for( Section section : sections ) {
+			if ( section.usesAggregates )
+				section.dependencies.addAll(withoutAggregates);
+		}
+
+		return sections;
+	}
+
+	private void inspectSection( Section section, IMendixObject templateRef, Set<Long> inspected ) throws CoreException {
+		if ( !inspected.add(templateRef.getId().toLong()) )
+			return;
+
+		TemplateConfiguration config = getReferencedTemplateConfig(this.context, templateRef);
+		section.usesAggregates |= config.usesAggregates();
+		section.usesMicroflows |= config.usesMicroflows();
+
+		List<IMendixObject> subTemplates = getSubTemplates(this.context, templateRef);
+		if ( subTemplates != null ) {
+			for( IMendixObject subTemplate : subTemplates )
+				inspectSection(section, subTemplate, inspected);
+		}
+	}
+
+	/**
+	 * Write all template references in order, following their dependency graph. The sections at the start that
+	 * don't have to wait for anything are written directly, with section threads only the first one. All other
+	 * sections without aggregates are exported into separate spill files: on a section thread as soon as the sections
+	 * they depend on are finished, or on the calling thread when they use microflows or no section threads are
+	 * configured. The sections with aggregates are written directly once all sections they depend on are finished.
+	 * The spill files are appended to the output stream in the order of the template references, the writer is flushed first.
+	 */
+	private void writeSections( Writer writer, OutputStream out, List<IMendixObject> templateRefs ) throws CoreException, IOException {
+		List<Section> sections = createSections(templateRefs);
+		boolean parallel = this.Configuration.SectionThreads > 1 && sections.size() > 1;
+
+		// The sections that are written directly, before the first section with aggregates or the first spilled section
+		int direct = 0;
+		while( direct < sections.size() && !sections.get(direct).usesAggregates && (direct == 0 || !parallel || sections.get(direct).usesMicroflows) )
+			direct++;
+		if ( direct == sections.size() ) {
+			for( Section section : sections )
+				processTemplateReference(writer, section.templateRef, this.parameterObject);
+			return;
+		}
+
+		ExecutorService sectionExecutor = null;
+		if ( parallel )
+			sectionExecutor = Executors.newFixedThreadPool(Math.min(this.Configuration.SectionThreads - 1, sections.size() - 1), new ExportThreadFactory("FlatFileExport-Section"));
+
+		List<File> spillFiles = new ArrayList<File>();
+		try {
+			List<Section> spilled = new ArrayList<Section>();
+			for( Section section : sections.subList(direct, sections.size()) ) {
+				if ( !section.usesAggregates )
+					spilled.add(section);
+			}
+
+			// The sections that don't depend on anything are exported while the direct sections are written
+			if ( sectionExecutor != null ) {
+				for( Section section : spilled ) {
+					if ( section.dependencies.isEmpty() && !section.usesMicroflows )
+						section.export = exportSection(section, sectionExecutor, spillFiles);
+				}
+			}
+
+			for( Section section : sections.subList(0, direct) )
+				processTemplateReference(writer, section.templateRef, this.parameterObject);
+
+			for( Section section : spilled ) {
+				if ( section.export == null ) {
+					waitForDependencies(section);
+					section.export = exportSection(section, (section.usesMicroflows ? null : sectionExecutor), spillFiles);
+				}
+			}
+
+			for( Section section : sections.subList(direct, sections.size()) ) {
+				if ( section.usesAggregates ) {
+					waitForDependencies(section);
+					processTemplateReference(writer, section.templateRef, this.parameterObject);
+					continue;
+				}
+
+				writer.flush();
+				File spillFile = waitFor(section.export);
+				InputStream in = new FileInputStream(spillFile);
+				try {
+					IOUtils.copyLarge(in, out, new byte[this.Configuration.WriteBufferSize]);
+				}
+				finally {
+					IOUtils.closeQuietly(in);
+				}
+				spillFile.delete();
+			}
+		}
+		finally {
+			if ( sectionExecutor != null )
+				sectionExecutor.shutdownNow();
+			for( File spillFile : spillFiles ) {
+				if ( spillFile.exists() && !spillFile.delete() )
+					spillFile.deleteOnExit();
+			}
+		}
+	}
+
+	private static void waitForDependencies( Section section ) throws CoreException {
+		for( Section dependency : section.dependencies ) {
+			// The sections that have been written directly are finished already
+			if ( dependency.export != null )
+				waitFor(dependency.export);
+		}
+	}
+
+	/**
+	 * Export the section into a new spill file, on a section thread with its own context, or on the calling thread when
+	 * no executor is given
+	 */
+	private Future<File> exportSection( Section section, ExecutorService sectionExecutor, List<File> spillFiles ) throws IOException {
+		File spillFile = File.createTempFile("FlatFileExport-" + this.parameterObject.getId().toLong() + "-", ".spill", Core.getConfiguration().getTempPath());
+		spillFiles.add(spillFile);
+		if ( sectionExecutor != null )
+			return sectionExecutor.submit(new SectionExport(createSectionHandler(), section.templateRef, spillFile));
+
+		FutureTask<File> export = new FutureTask<File>(new SectionExport(this, section.templateRef, spillFile));
+		export.run();
+		return export;
+	}
+
+	/**
+	 * @return a handler that exports a section of this export with a context of its own, it shares the aggregates and
+	 *         the retrieval and render threads
+	 */
+	private FileHandler createSectionHandler() {
+		FileHandler handler = new FileHandler(this, WorkerContext.create(this.context));
+		handler.aggregates = this.aggregates;
+		handler.retrievalExecutor = this.retrievalExecutor;
+		handler.renderExecutor = this.renderExecutor;
+		handler.retrievalContext = this.retrievalContext;
+		handler.renderContexts = this.renderContexts;
+
+		return handler;
+	}
+
+	/**
+	 * @return the aggregates with all templates of the template references and their sub templates registered, or null
+	 *         when none of these templates uses aggregates
+	 */
+	private ExportAggregates createAggregates( List<IMendixObject> templateRefs ) throws CoreException {
+		ExportAggregates aggregates = new ExportAggregates();
+		if ( !registerAggregates(aggregates, templateRefs, new HashSet<Long>()) )
+			return null;
+
+		aggregates.resolve();
+		return aggregates;
+	}
+
+	private boolean registerAggregates( ExportAggregates aggregates, List<IMendixObject> templateRefs, Set<Long> registered ) throws CoreException {
+		boolean usesAggregates = false;
+		for( IMendixObject templateRef : templateRefs ) {
+			if ( !registered.add(templateRef.getId().toLong()) )
+				continue;
+
+			TemplateConfiguration config = getReferencedTemplateConfig(this.context, templateRef);
+			aggregates.register(config);
+			usesAggregates |= config.usesAggregates();
+
+			List<IMendixObject> subTemplates = getSubTemplates(this.context, templateRef);
+			if ( subTemplates != null )
+				usesAggregates |= registerAggregates(aggregates, subTemplates, registered);
+		}
+
+		return usesAggregates;
+	}
+
+	private TemplateConfiguration getReferencedTemplateConfig( IContext context, IMendixObject templateRef ) throws CoreException {
+		return getTemplateConfig(context, Core.retrieveId(context, (IMendixIdentifier) templateRef.getValue(context, TemplateReference.MemberNames.TemplateReference_Template.toString())));
 	}
 
-	public void processTemplateReference( OutputStreamWriter writer, IMendixObject templateRef, IMendixObject exportObject ) throws CoreException {
-		IMendixObject template = Core.retrieveId(this.context, (IMendixIdentifier) templateRef.getValue(this.context, TemplateReference.MemberNames.TemplateReference_Template.toString()));
-		TemplateConfiguration config = getTemplateConfig(template);
+	/**
+	 * Exports a single template reference into its own spill file, with its own writer and line handlers
+	 */
+	private static class SectionExport implements Callable<File> {
+		private FileHandler handler;
+		private IMendixObject templateRef;
+		private File spillFile;
+
+		private SectionExport( FileHandler handler, IMendixObject templateRef, File spillFile ) {
+			this.handler = handler;
+			this.templateRef = templateRef;
+			this.spillFile = spillFile;
+		}
+
+		@Override
+		public File call() throws CoreException, IOException {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.spillFile), "UTF-8"), this.handler.Configuration.WriteBufferSize);
+			try {
+				this.handler.processTemplateReference(writer, this.templateRef, this.handler.parameterObject);
+				writer.close();
+			}
+			finally {
+				this.handler.removeLineHandlers(writer);
+				IOUtils.closeQuietly(writer);
+			}
+
+			return this.spillFile;
+		}
+	}
+
+	/**
+	 * Input stream on a temporary file, the file is removed when the stream is closed
+	 */
+	private static class TempFileInputStream extends FileInputStream {
+		private File file;
+
+		private TempFileInputStream( File file ) throws FileNotFoundException {
+			super(file);
+			this.file = file;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			}
+			finally {
+				this.file.delete();
+			}
+		}
+	}
+
+	public void processTemplateReference( Writer writer, IMendixObject templateRef, IMendixObject exportObject ) throws CoreException {
+		TemplateConfiguration config = getReferencedTemplateConfig(this.context, templateRef);
 		this.logger.debug("Start exporting using template: " + config.getTemplateName());
 
-		ILineHandler lineHandler = LineHandlerFactory.getLineHandler(this.context, config, writer);
+		ILineHandler lineHandler = getLineHandler(config, writer);
 
 		ReferenceOrObject source = ReferenceOrObject.valueOf((String) templateRef.getValue(this.context, TemplateReference.MemberNames.ObjectSource.toString()));
-		List<IMendixIdentifier> subTemplateIdList = templateRef.getValue(this.context, TemplateReference.MemberNames.TemplateReference_SubTemplate.toString());
-		List<IMendixObject> subTemplates = null;
-		if ( subTemplateIdList != null && subTemplateIdList.size() > 0 ) {
-			subTemplates = new ArrayList<IMendixObject>();
-			for( IMendixIdentifier id : subTemplateIdList )
-				subTemplates.add(Core.retrieveId(this.context, id));
-		}
+		List<IMendixObject> subTemplates = getSubTemplates(this.context, templateRef);
 
 		if ( source == ReferenceOrObject.Reference ) {
 			this.logger.debug("Creating multiple lines, using template: " + config.getTemplateName());
@@ -111,39 +606,396 @@ public class FileHandler {
 			if ( sortOnMember == null )
 				throw new CoreException("The attribute to sort on is required");
 
-			HashMap<String, String> sortMap = new HashMap<String, String>();
-			sortMap.put(sortOnMember.getAttributeName(), "ASC");
-			int totalSize = 0, limit = 1000, offset = 0;
-			List<IMendixObject> result;
-			do {
-				result = Core.retrieveXPathQuery(this.context,
-						"//" + objTypeTo.getCompleteName() + "[" + ref.getCompleteName() + "=" + exportObject.getId().toLong() + "]", limit, offset,
-						sortMap);
-				for( IMendixObject associatedObject : result ) {
-					lineHandler.writeLine(associatedObject);
-
-					if ( subTemplates != null ) {
-						for( IMendixObject subTemplate : subTemplates )
-							processTemplateReference(writer, subTemplate, associatedObject);
-					}
+			if ( this.Configuration.ProjectionExport && subTemplates == null ) {
+				ProjectionQuery query = getProjectionQuery(templateRef, config, objTypeTo.getCompleteName(), ref.getCompleteName(), sortOnMember.getAttributeName());
+				if ( query != null ) {
+					lineHandler.setReferencePrefetch(null);
+					int totalSize = query.export(lineHandler, exportObject, this.Configuration.RetrievePage_Limit, this.Configuration.KeysetPagination);
+
+					this.logger.trace("Processing association: " + ref
+							.getCompleteName() + ", exported " + totalSize + " rows, using template: " + config.getTemplateName());
+					return;
 				}
-				totalSize += result.size();
-				offset += limit;
-			} while( result.size() > 0 );
+			}
+
+			boolean parallel = (this.renderExecutor != null && !config.usesMicroflows());
+			// In parallel the pages are retrieved on the retrieval thread, with its own context
+			AssociatedObjectPager pager = new AssociatedObjectPager((parallel ? this.retrievalContext : this.context), objTypeTo.getCompleteName(), ref.getCompleteName(), sortOnMember.getAttributeName(), exportObject,
+					this.Configuration.RetrievePage_Limit, this.Configuration.KeysetPagination);
+			if ( parallel ) {
+				exportPagesInParallel(writer, config, pager, subTemplates);
+			}
+			else {
+				List<IMendixObject> result;
+				do {
+					result = pager.next();
+
+					ReferencePrefetch prefetch = null;
+					List<SubTemplateBatch> subTemplateBatches = null;
+					if ( result.size() > 0 ) {
+						prefetch = new ReferencePrefetch(this.context, config, result);
+						if ( subTemplates != null && this.Configuration.BatchSubTemplates )
+							subTemplateBatches = retrieveSubTemplateBatches(this.context, subTemplates, result);
+					}
+
+					for( IMendixObject associatedObject : result ) {
+						// Set the prefetch for each line, the sub templates could have replaced it on the same handler
+						lineHandler.setReferencePrefetch(prefetch);
+						lineHandler.writeLine(associatedObject);
+
+						processSubTemplates(writer, subTemplates, subTemplateBatches, associatedObject);
+					}
+				} while( result.size() > 0 );
+			}
 
 			this.logger.trace("Processing association: " + ref
-					.getCompleteName() + ", retrieved " + totalSize + " associated objects, using template: " + config.getTemplateName());
+					.getCompleteName() + ", retrieved " + pager.getTotalSize() + " associated objects, using template: " + config.getTemplateName());
 		}
 		else {
 			this.logger.debug("Creating single line, using template: " + config.getTemplateName());
+			lineHandler.setReferencePrefetch(null);
 			lineHandler.writeLine(exportObject);
-			if ( subTemplates != null ) {
-				for( IMendixObject subTemplate : subTemplates )
-					processTemplateReference(writer, subTemplate, exportObject);
+
+			List<SubTemplateBatch> subTemplateBatches = null;
+			if ( subTemplates != null && this.Configuration.BatchSubTemplates )
+				subTemplateBatches = retrieveSubTemplateBatches(this.context, subTemplates, Collections.singletonList(exportObject));
+			processSubTemplates(writer, subTemplates, subTemplateBatches, exportObject);
+
+		}
+
+	}
+
+	/**
+	 * @return the projection query for the template reference, or null when its template can't be exported from a projection
+	 */
+	private ProjectionQuery getProjectionQuery( IMendixObject templateRef, TemplateConfiguration config, String objectType, String referenceName, String sortAttribute ) {
+		Long id = templateRef.getId().toLong();
+		if ( !this.projectionQueries.containsKey(id) ) {
+			ProjectionQuery query = ProjectionQuery.create(this.context, config, objectType, referenceName, sortAttribute);
+			if ( query == null && this.logger.isDebugEnabled() )
+				this.logger.debug("Unable to export template: " + config.getTemplateName() + " from a projection, retrieving the objects instead");
+			this.projectionQueries.put(id, query);
+		}
+
+		return this.projectionQueries.get(id);
+	}
+
+	private List<IMendixObject> getSubTemplates( IContext context, IMendixObject templateRef ) throws CoreException {
+		List<IMendixIdentifier> subTemplateIdList = templateRef.getValue(context, TemplateReference.MemberNames.TemplateReference_SubTemplate.toString());
+		List<IMendixObject> subTemplates = null;
+		if ( subTemplateIdList != null && subTemplateIdList.size() > 0 ) {
+			subTemplates = new ArrayList<IMendixObject>();
+			for( IMendixIdentifier id : subTemplateIdList )
+				subTemplates.add(Core.retrieveId(context, id));
+		}
+
+		return subTemplates;
+	}
+
+	/**
+	 * Write the lines of all sub templates for the object, from the batches when they have been retrieved already
+	 */
+	private void processSubTemplates( Writer writer, List<IMendixObject> subTemplates, List<SubTemplateBatch> subTemplateBatches, IMendixObject object ) throws CoreException {
+		if ( subTemplateBatches != null )
+			writeSubTemplateBatches(writer, subTemplateBatches, object);
+		else if ( subTemplates != null ) {
+			for( IMendixObject subTemplate : subTemplates )
+				processTemplateReference(writer, subTemplate, object);
+		}
+	}
+
+	/**
+	 * The objects of a sub template for all parent objects of a page, including the objects of its own sub templates
+	 */
+	private static class SubTemplateBatch {
+		private IMendixObject templateRef;
+		private TemplateConfiguration config;
+		/**
+		 * The objects for each parent object in the order of the sort attribute, null when they couldn't be retrieved at
+		 * once. Parent objects that aren't in the map are exported per parent object.
+		 */
+		private Map<Long, List<IMendixObject>> objectsByParent;
+		private ReferencePrefetch prefetch;
+		private List<SubTemplateBatch> subTemplateBatches;
+	}
+
+	private List<SubTemplateBatch> retrieveSubTemplateBatches( IContext context, List<IMendixObject> subTemplates, List<IMendixObject> parents ) throws CoreException {
+		List<SubTemplateBatch> batches = new ArrayList<SubTemplateBatch>(subTemplates.size());
+		for( IMendixObject subTemplate : subTemplates ) {
+			SubTemplateBatch batch = new SubTemplateBatch();
+			batch.templateRef = subTemplate;
+			batch.config = getReferencedTemplateConfig(context, subTemplate);
+			batch.objectsByParent = retrieveObjectsByParent(context, subTemplate, parents);
+
+			if ( batch.objectsByParent != null ) {
+				List<IMendixObject> objects = new ArrayList<IMendixObject>();
+				for( List<IMendixObject> parentObjects : batch.objectsByParent.values() )
+					objects.addAll(parentObjects);
+
+				List<IMendixObject> subSubTemplates = getSubTemplates(context, subTemplate);
+				if ( objects.size() > 0 ) {
+					batch.prefetch = new ReferencePrefetch(context, batch.config, objects);
+					if ( subSubTemplates != null )
+						batch.subTemplateBatches = retrieveSubTemplateBatches(context, subSubTemplates, objects);
+				}
 			}
+			batches.add(batch);
+		}
+
+		return batches;
+	}
+
+	/**
+	 * @return the objects of the template reference grouped by parent object, or null when the parent of an object can't be determined from the object
+	 */
+	private Map<Long, List<IMendixObject>> retrieveObjectsByParent( IContext context, IMendixObject templateRef, List<IMendixObject> parents ) throws CoreException {
+		Map<Long, List<IMendixObject>> objectsByParent = new LinkedHashMap<Long, List<IMendixObject>>();
 
+		ReferenceOrObject source = ReferenceOrObject.valueOf((String) templateRef.getValue(context, TemplateReference.MemberNames.ObjectSource.toString()));
+		if ( source != ReferenceOrObject.Reference ) {
+			for( IMendixObject parent : parents )
+				objectsByParent.put(parent.getId().toLong(), Collections.singletonList(parent));
+			return objectsByParent;
 		}
 
+		TemplateReference tr = TemplateReference.initialize(context, templateRef);
+		MxObjectReference ref = tr.getTemplateReference_MxObjectReference();
+		if ( ref == null )
+			throw new CoreException("The Template reference is required");
+		MxObjectType objTypeTo = tr.getTemplateReference_MxObjectType_To();
+		if ( objTypeTo == null )
+			throw new CoreException("The Template Object Type is required");
+		MxObjectMember sortOnMember = tr.getTemplateReference_SortOn_MxObjectMember();
+		if ( sortOnMember == null )
+			throw new CoreException("The attribute to sort on is required");
+
+		String referenceName = ref.getCompleteName();
+		if ( !ReferencePrefetch.isOwnedByAssociatedObject(referenceName, objTypeTo.getCompleteName()) )
+			return null;
+
+		List<Long> parentIds = new ArrayList<Long>(parents.size());
+		for( IMendixObject parent : parents )
+			parentIds.add(parent.getId().toLong());
+
+		// The objects are retrieved in the same order as the objects of a single parent, at most a page of objects at once
+		int remaining = this.Configuration.RetrievePage_Limit;
+		for( int i = 0; i < parentIds.size() && remaining > 0; i += SUBTEMPLATE_PARENTS_PER_QUERY ) {
+			List<Long> chunk = parentIds.subList(i, Math.min(i + SUBTEMPLATE_PARENTS_PER_QUERY, parentIds.size()));
+			AssociatedObjectPager pager = new AssociatedObjectPager(context, objTypeTo.getCompleteName(), referenceName, sortOnMember.getAttributeName(), chunk,
+					remaining + 1, this.Configuration.KeysetPagination);
+			List<IMendixObject> result = pager.next();
+			// The parents of this chunk have more objects than fit in the page, these are exported per parent object
+			if ( result.size() > remaining )
+				break;
+			remaining -= result.size();
+
+			Map<Long, List<IMendixObject>> chunkObjects = new HashMap<Long, List<IMendixObject>>(chunk.size());
+			for( Long parentId : chunk ) {
+				chunkObjects.put(parentId, new ArrayList<IMendixObject>());
+				objectsByParent.put(parentId, chunkObjects.get(parentId));
+			}
+			for( IMendixObject object : result ) {
+				// Only add the object to the parents of this chunk, it is retrieved again for the parents in other chunks
+				for( Long parentId : ReferencePrefetch.getReferencedIds(context, object, referenceName) ) {
+					List<IMendixObject> parentObjects = chunkObjects.get(parentId);
+					if ( parentObjects != null )
+						parentObjects.add(object);
+				}
+			}
+		}
+
+		return objectsByParent;
+	}
+
+	private void writeSubTemplateBatches( Writer writer, List<SubTemplateBatch> batches, IMendixObject parent ) throws CoreException {
+		for( SubTemplateBatch batch : batches ) {
+			if ( batch.objectsByParent == null ) {
+				processTemplateReference(writer, batch.templateRef, parent);
+				continue;
+			}
+
+			List<IMendixObject> objects = batch.objectsByParent.get(parent.getId().toLong());
+			if ( objects == null ) {
+				processTemplateReference(writer, batch.templateRef, parent);
+				continue;
+			}
+
+			ILineHandler lineHandler = getLineHandler(batch.config, writer);
+			for( IMendixObject object : objects ) {
+				lineHandler.setReferencePrefetch(batch.prefetch);
+				lineHandler.writeLine(object);
+
+				if ( batch.subTemplateBatches != null )
+					writeSubTemplateBatches(writer, batch.subTemplateBatches, object);
+			}
+		}
+	}
+
+	/**
+	 * @return the line handler for the template, only one line handler is created per template for each writer
+	 */
+	private ILineHandler getLineHandler( TemplateConfiguration config, Writer writer ) throws CoreException {
+		synchronized( this.lineHandlers ) {
+			Map<Long, ILineHandler> handlers = this.lineHandlers.get(writer);
+			if ( handlers == null ) {
+				handlers = new HashMap<Long, ILineHandler>();
+				this.lineHandlers.put(writer, handlers);
+			}
+
+			ILineHandler lineHandler = handlers.get(config.getId());
+			if ( lineHandler == null ) {
+				lineHandler = LineHandlerFactory.getLineHandler(this.context, config, writer);
+				lineHandler.setAggregates(this.aggregates);
+				handlers.put(config.getId(), lineHandler);
+			}
+
+			return lineHandler;
+		}
+	}
+
+	private void removeLineHandlers( Writer writer ) {
+		synchronized( this.lineHandlers ) {
+			this.lineHandlers.remove(writer);
+		}
+	}
+
+	/**
+	 * Export all pages from the pager using the retrieval and render threads.
+	 * The next page is retrieved while the current page is rendered, the rendered lines are written on the calling
+	 * thread in the original order. The sub templates are processed on the calling thread as well, directly after the
+	 * line of their parent object. Every thread only accesses the database with its own context, the pager has to use
+	 * the context of the retrieval thread.
+	 */
+	private void exportPagesInParallel( Writer writer, TemplateConfiguration config, AssociatedObjectPager pager, List<IMendixObject> subTemplates ) throws CoreException {
+		Future<RetrievedPage> nextPage = this.retrievalExecutor.submit(new PageRetrieval(config, pager, subTemplates));
+		RetrievedPage page;
+		while( (page = waitFor(nextPage)).objects.size() > 0 ) {
+			nextPage = this.retrievalExecutor.submit(new PageRetrieval(config, pager, subTemplates));
+
+			int batchSize = Math.max(1, this.Configuration.RenderBatchSize);
+			List<Future<RenderedLines>> renderedBatches = new ArrayList<Future<RenderedLines>>();
+			for( int i = 0; i < page.objects.size(); i += batchSize ) {
+				List<IMendixObject> batch = page.objects.subList(i, Math.min(i + batchSize, page.objects.size()));
+				renderedBatches.add(this.renderExecutor.submit(new LineRenderer(config, page.prefetch, batch)));
+			}
+
+			for( Future<RenderedLines> renderedBatch : renderedBatches ) {
+				RenderedLines lines = waitFor(renderedBatch);
+				for( int i = 0; i < lines.objects.size(); i++ ) {
+					try {
+						writer.write(lines.content, lines.offsets[i], lines.offsets[i + 1] - lines.offsets[i]);
+					}
+					catch( IOException e ) {
+						throw new CoreException(e);
+					}
+
+					processSubTemplates(writer, subTemplates, page.subTemplateBatches, lines.objects.get(i));
+				}
+			}
+		}
+	}
+
+	static <T> T waitFor( Future<T> future ) throws CoreException {
+		try {
+			return future.get();
+		}
+		catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new CoreException("Interrupted while processing the file", e);
+		}
+		catch( ExecutionException e ) {
+			if ( e.getCause() instanceof CoreException )
+				throw (CoreException) e.getCause();
+
+			throw new CoreException(e.getCause());
+		}
+	}
+
+	private static class RetrievedPage {
+		private List<IMendixObject> objects;
+		private ReferencePrefetch prefetch;
+		private List<SubTemplateBatch> subTemplateBatches;
+	}
+
+	private class PageRetrieval implements Callable<RetrievedPage> {
+		private TemplateConfiguration config;
+		private AssociatedObjectPager pager;
+		private List<IMendixObject> subTemplates;
+
+		private PageRetrieval( TemplateConfiguration config, AssociatedObjectPager pager, List<IMendixObject> subTemplates ) {
+			this.config = config;
+			this.pager = pager;
+			this.subTemplates = subTemplates;
+		}
+
+		@Override
+		public RetrievedPage call() throws CoreException {
+			RetrievedPage page = new RetrievedPage();
+			page.objects = this.pager.next();
+			if ( page.objects.size() > 0 ) {
+				page.prefetch = new ReferencePrefetch(FileHandler.this.retrievalContext, this.config, page.objects);
+				if ( this.subTemplates != null && FileHandler.this.Configuration.BatchSubTemplates )
+					page.subTemplateBatches = retrieveSubTemplateBatches(FileHandler.this.retrievalContext, this.subTemplates, page.objects);
+			}
+
+			return page;
+		}
+	}
+
+	private static class RenderedLines {
+		private List<IMendixObject> objects;
+		private char[] content;
+		/** The start of each line in the content, the last entry is the end of the content */
+		private int[] offsets;
+	}
+
+	private class LineRenderer implements Callable<RenderedLines> {
+		private TemplateConfiguration config;
+		private ReferencePrefetch prefetch;
+		private List<IMendixObject> objects;
+
+		private LineRenderer( TemplateConfiguration config, ReferencePrefetch prefetch, List<IMendixObject> objects ) {
+			this.config = config;
+			this.prefetch = prefetch;
+			this.objects = objects;
+		}
+
+		@Override
+		public RenderedLines call() throws CoreException {
+			int lineLength = (this.config.getTotalLength() != null ? this.config.getTotalLength() : 0) + 2;
+			CharArrayWriter out = new CharArrayWriter(this.objects.size() * lineLength);
+
+			ILineHandler lineHandler = LineHandlerFactory.getLineHandler(FileHandler.this.renderContexts.get(), this.config, out);
+			lineHandler.setReferencePrefetch(this.prefetch);
+			lineHandler.setAggregates(FileHandler.this.aggregates);
+
+			RenderedLines lines = new RenderedLines();
+			lines.objects = this.objects;
+			lines.offsets = new int[this.objects.size() + 1];
+			for( int i = 0; i < this.objects.size(); i++ ) {
+				lineHandler.writeLine(this.objects.get(i));
+				lines.offsets[i + 1] = out.size();
+			}
+			lines.content = out.toCharArray();
+
+			return lines;
+		}
+	}
+
+	static class ExportThreadFactory implements ThreadFactory {
+		private String name;
+		private int threadNr = 0;
+
+		ExportThreadFactory( String name ) {
+			this.name = name;
+		}
+
+		@Override
+		public synchronized Thread newThread( Runnable runnable ) {
+			Thread thread = new Thread(runnable, this.name + "-" + (++this.threadNr));
+			thread.setDaemon(true);
+			return thread;
+		}
 	}
 
 	public void importFromFile( IMendixObject importFile ) throws CoreException {
@@ -153,47 +1005,61 @@ public class FileHandler {
 				.getType() + "[" + TemplateReference.MemberNames.TemplateReference_TemplateSet + "=" + this.templateConfig.getId().toLong() + "]",
 				Integer.MAX_VALUE, 0, sortmap);
 		try {
-			if ( sortedList.size() > 1 )
-				throw new CoreException("Import templates currently only support 1 template. Please us a template set with a single template in it.");
-
-			BufferedReader reader = new BufferedReader(new InputStreamReader(Core.getFileDocumentContent(this.context, importFile), "UTF-8"));
+			if ( isRecordTypeImport(sortedList) ) {
+				importRecordTypes(openImportReader(Core.getFileDocumentContent(this.context, importFile)), sortedList);
+				return;
+			}
 
 			for( IMendixObject templateReference : sortedList ) {
-				IMendixObject template = Core.retrieveId(this.context, (IMendixIdentifier) templateReference.getValue(this.context, TemplateReference.MemberNames.TemplateReference_Template.toString()));
-				TemplateConfiguration config = getTemplateConfig(template);
+				TemplateConfiguration config = getReferencedTemplateConfig(this.context, templateReference);
 
 				this.logger.debug("Start importing using template: " + config.getTemplateName());
 
 				// Initialize the line handler
 				ILineHandler lineHandler = LineHandlerFactory.getLineHandler(this.context, config);
+				if ( lineHandler instanceof DelimitedLineHandler )
+					((DelimitedLineHandler) lineHandler).setImportThreads(this.Configuration.ImportThreads, this.Configuration.ImportChunkSize);
 
-				/*
-				 * Validate the input object and import the file based on the association or direct into the parameter
-				 */
-				IMendixIdentifier objFromId = templateReference.getValue(this.context, TemplateReference.MemberNames.TemplateReference_MxObjectType_From.toString());
-				if ( objFromId == null )
-					throw new CoreException("Invalid configuration for template: " + config.getTemplateName() + " no parameter object type specified");
-				// TODO validate: IMendixObject objFrom = Core.retrieveId(this.context, objFromId);
-
-				IMendixIdentifier refId = templateReference.getValue(this.context, TemplateReference.MemberNames.TemplateReference_MxObjectReference.toString());
-				if ( refId != null ) {
-					IMendixIdentifier objToId = templateReference.getValue(this.context, TemplateReference.MemberNames.TemplateReference_MxObjectType_To.toString());
-					if ( objToId == null )
-						throw new CoreException("Invalid configuration for template: " + config.getTemplateName() + " no target object type specified");
+				String referenceName = getImportReferenceName(templateReference, config);
+				BufferedReader reader;
+				if ( this.Configuration.MappedImport && lineHandler instanceof FixedLengthLineHandler ) {
+					File tmpFile = File.createTempFile("FlatFileImport-" + importFile.getId().toLong() + "-", ".tmp", Core.getConfiguration().getTempPath());
+					try {
+						try( InputStream content = Core.getFileDocumentContent(this.context, importFile); OutputStream out = new FileOutputStream(tmpFile) ) {
+							IOUtils.copy(content, out);
+						}
 
-					// TODO validate: IMendixObject objTo = Core.retrieveId(this.context, objToId);
-					IMendixObject ref = Core.retrieveId(this.context, refId);
+						this.logger.debug("Importing the mapped file, using template: " + config.getTemplateName());
+						if ( ((FixedLengthLineHandler) lineHandler).importFromMappedFile(tmpFile, this.Configuration.ImportCharset, this.Configuration.ImportThreads, this.Configuration.ImportChunkSize,
+								(referenceName != null ? this.parameterObject : null), referenceName) ) {
+							tmpFile.delete();
+							continue;
+						}
 
-					// TODO validate and compare the object types and association
+						// The temp file is removed when the reader is closed
+						reader = openImportReader(new TempFileInputStream(tmpFile));
+					}
+					catch( CoreException | IOException | RuntimeException e ) {
+						tmpFile.delete();
+						throw e;
+					}
+				}
+				else
+					reader = openImportReader(Core.getFileDocumentContent(this.context, importFile));
 
-					this.logger.debug("Importing a parameter over association: " + ref.getValue(this.context, MxObjectReference.MemberNames.CompleteName.toString()) + " , using template: " + config.getTemplateName());
-					lineHandler.importFromFile(reader, importFile, this.parameterObject, (String) ref.getValue(this.context, MxObjectReference.MemberNames.CompleteName.toString()));
+				try {
+					if ( referenceName != null ) {
+						this.logger.debug("Importing a parameter over association: " + referenceName + " , using template: " + config.getTemplateName());
+						lineHandler.importFromFile(reader, importFile, this.parameterObject, referenceName);
+					}
+					else {
+						this.logger.debug("Importing without a parameter, using template: " + config.getTemplateName());
+						lineHandler.importFromFile(reader, importFile);
+					}
 				}
-				else {
-					this.logger.debug("Importing without a parameter, using template: " + config.getTemplateName());
-					lineHandler.importFromFile(reader, importFile);
+				finally {
+					reader.close();
 				}
-
 			}
 		}
 		catch( IOException e ) {
@@ -201,40 +1067,126 @@ public class FileHandler {
 		}
 	}
 
-	@SuppressWarnings("unused")
-	private static File createUTF8FileFromStream( InputStream is ) throws FileNotFoundException, IOException {
-		File file = createTempFile(is, null);
+	/**
+	 * @return true when the file contains multiple record types: there is more than one template or the template has sub
+	 *         templates, and all templates are fixed length. Delimited templates are all imported from the entire file.
+	 */
+	private boolean isRecordTypeImport( List<IMendixObject> templateRefs ) throws CoreException {
+		if ( templateRefs.size() == 0 || (templateRefs.size() == 1 && getSubTemplates(this.context, templateRefs.get(0)) == null) )
+			return false;
 
-		BufferedInputStream fis1 = new BufferedInputStream(new FileInputStream(file));
-		byte[] byteData = new byte[fis1.available()];
-		fis1.read(byteData);
-		fis1.close();
+		for( IMendixObject templateRef : templateRefs ) {
+			if ( getReferencedTemplateConfig(this.context, templateRef).getFormatType() != FormatType.FixedLength )
+				return false;
+		}
+
+		return true;
+	}
+
+	private BufferedReader openImportReader( InputStream content ) throws IOException {
+		return new BufferedReader(ImportCharset.openReader(content, this.Configuration.ImportCharset));
+	}
+
+	/**
+	 * Validate the input object of the template reference
+	 * 
+	 * @return the association the objects are imported over, or null when the objects are imported without the parameter
+	 */
+	private String getImportReferenceName( IMendixObject templateReference, TemplateConfiguration config ) throws CoreException {
+		IMendixIdentifier objFromId = templateReference.getValue(this.context, TemplateReference.MemberNames.TemplateReference_MxObjectType_From.toString());
+		if ( objFromId == null )
+			throw new CoreException("Invalid configuration for template: " + config.getTemplateName() + " no parameter object type specified");
+		// TODO validate: IMendixObject objFrom = Core.retrieveId(this.context, objFromId);
 
-		CharsetDetector detector = new CharsetDetector();
-		detector.setText(byteData);
-		CharsetMatch match = detector.detect();
+		IMendixIdentifier refId = templateReference.getValue(this.context, TemplateReference.MemberNames.TemplateReference_MxObjectReference.toString());
+		if ( refId == null )
+			return null;
 
-		BufferedInputStream fis = new BufferedInputStream(new FileInputStream(file));
-		File f2 = createTempFile(fis, match.getName());
+		IMendixIdentifier objToId = templateReference.getValue(this.context, TemplateReference.MemberNames.TemplateReference_MxObjectType_To.toString());
+		if ( objToId == null )
+			throw new CoreException("Invalid configuration for template: " + config.getTemplateName() + " no target object type specified");
 
-		return f2;
+		// TODO validate: IMendixObject objTo = Core.retrieveId(this.context, objToId);
+		// TODO validate and compare the object types and association
+		IMendixObject ref = Core.retrieveId(this.context, refId);
+
+		return (String) ref.getValue(this.context, MxObjectReference.MemberNames.CompleteName.toString());
 	}
 
-	private static File createTempFile( InputStream is, String encoding ) throws FileNotFoundException, IOException {
-		File file = File.createTempFile("CSVMx", "CSVMx");
-		FileOutputStream ous = new FileOutputStream(file);
-		byte buf[] = new byte[1024];
-		int len;
-		while( (len = is.read(buf)) > 0 ) {
-			if ( encoding != null ) {
-				byte b[] = IOUtils.toString(buf, encoding).getBytes("UTF-8");
-				ous.write(b, 0, len);
-			}
+	/**
+	 * Import a file that contains multiple record types in a single read. Every template reference, including its sub
+	 * templates, is a record type that is recognized by the static value of its identifying field. The lines of a sub
+	 * template are associated to the object of the last line of its parent template.
+	 */
+	private void importRecordTypes( BufferedReader reader, List<IMendixObject> templateRefs ) throws CoreException, IOException {
+		FlatFileParser ffp = new FlatFileParser();
+		DispatcherListener dispatcher = new DispatcherListener(false);
+		List<FixedLengthLineHandler.FlatFileLineParser> lineParsers = new ArrayList<FixedLengthLineHandler.FlatFileLineParser>();
+
+		// Sub templates are declared under their parent template only
+		Set<IMendixIdentifier> subTemplateIds = new HashSet<IMendixIdentifier>();
+		for( IMendixObject templateRef : templateRefs ) {
+			List<IMendixIdentifier> ids = templateRef.getValue(this.context, TemplateReference.MemberNames.TemplateReference_SubTemplate.toString());
+			if ( ids != null )
+				subTemplateIds.addAll(ids);
+		}
+		List<IMendixObject> recordTypes = new ArrayList<IMendixObject>();
+		for( IMendixObject templateRef : templateRefs ) {
+			if ( !subTemplateIds.contains(templateRef.getId()) )
+				recordTypes.add(templateRef);
+		}
+		declareRecordTypes(ffp, dispatcher, lineParsers, recordTypes, null);
+		ffp.addListener(dispatcher);
+
+		try {
+			ffp.parse(reader);
+		}
+		catch( FFPParseException e ) {
+			throw new CoreException("Unable to evaluate the flat file", e);
+		}
+
+		for( FixedLengthLineHandler.FlatFileLineParser lineParser : lineParsers )
+			lineParser.finished();
+	}
+
+	private void declareRecordTypes( FlatFileParser ffp, DispatcherListener dispatcher, List<FixedLengthLineHandler.FlatFileLineParser> lineParsers, List<IMendixObject> templateRefs,
+			FixedLengthLineHandler.FlatFileLineParser parent ) throws CoreException {
+		for( IMendixObject templateRef : templateRefs ) {
+			TemplateConfiguration config = getReferencedTemplateConfig(this.context, templateRef);
+			if ( config.getFormatType() != FormatType.FixedLength )
+				throw new CoreException("Importing multiple templates is only supported for fixed length templates, template: " + config.getTemplateName() + " is not fixed length");
+
+			IMendixIdentifier fieldId = templateRef.getValue(this.context, TemplateReference.MemberNames.TemplateReference_TemplateIdentifyingField.toString());
+			if ( fieldId == null )
+				throw new CoreException("Invalid configuration for template: " + config.getTemplateName() + " no identifying field specified");
+			IMendixObject field = Core.retrieveId(this.context, fieldId);
+			String constant = field.getValue(this.context, Field.MemberNames.StaticValue.toString());
+			Integer startPos = field.getValue(this.context, Field.MemberNames.FlatFilePosition.toString());
+			if ( constant == null || constant.isEmpty() || startPos == null )
+				throw new CoreException("Invalid configuration for template: " + config.getTemplateName() + " the identifying field requires a static value and a position");
+
+			this.logger.debug("Importing lines starting with: " + constant + " at position: " + startPos + ", using template: " + config.getTemplateName());
+
+			FixedLengthLineHandler lineHandler = (FixedLengthLineHandler) LineHandlerFactory.getLineHandler(this.context, config);
+			LineFormat format = lineHandler.createLineFormat();
+			String referenceName = getImportReferenceName(templateRef, config);
+
+			FixedLengthLineHandler.FlatFileLineParser lineParser;
+			if ( parent == null )
+				lineParser = new FixedLengthLineHandler.FlatFileLineParser(lineHandler, (referenceName != null ? this.parameterObject : null), referenceName);
+			else if ( referenceName != null )
+				lineParser = new FixedLengthLineHandler.FlatFileLineParser(lineHandler, parent, referenceName);
 			else
-				ous.write(buf, 0, len);
+				throw new CoreException("Invalid configuration for sub template: " + config.getTemplateName() + " no association to its parent template specified");
+
+			// The positions are 1 based in the template, the line starts at 0
+			ffp.declare(new ConstantFoundInLineCondition(constant, startPos - 1), format);
+			dispatcher.associateListener(format, lineParser);
+			lineParsers.add(lineParser);
+
+			List<IMendixObject> subTemplates = getSubTemplates(this.context, templateRef);
+			if ( subTemplates != null )
+				declareRecordTypes(ffp, dispatcher, lineParsers, subTemplates, lineParser);
 		}
-		ous.close();
-		is.close();
-		return file;
 	}
 }
@@ -1,17 +1,30 @@
 package flatfilemanager.implementation;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.Writer;
-import java.util.HashMap;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.apache.commons.lang.StringUtils;
 import org.sadun.text.ffp.FFPParseException;
 import org.sadun.text.ffp.FlatFileParser;
 import org.sadun.text.ffp.LineFormat;
+import org.sadun.text.ffp.LineView;
 import org.sadun.text.ffp.NotCondition;
 
 import com.mendix.core.Core;
@@ -19,27 +32,25 @@ import com.mendix.core.CoreException;
 import com.mendix.core.CoreRuntimeException;
 import com.mendix.logging.ILogNode;
 import com.mendix.systemwideinterfaces.core.IContext;
-import com.mendix.systemwideinterfaces.core.IMendixIdentifier;
 import com.mendix.systemwideinterfaces.core.IMendixObject;
 import com.mendix.systemwideinterfaces.core.meta.IMetaPrimitive.PrimitiveType;
 
 import flatfilemanager.implementation.TemplateConfiguration.ColumnConfig;
-import flatfilemanager.proxies.Field;
-import flatfilemanager.proxies.FieldDataType;
-import flatfilemanager.proxies.SuffixOrPrefix;
-import mxmodelreflection.proxies.MxObjectMember;
-import mxmodelreflection.proxies.MxObjectReference;
-import mxmodelreflection.proxies.MxObjectType;
 import replication.MetaInfo;
+import replication.MetaInfo.MetaInfoObject;
+import replication.ReplicationSettings.MendixReplicationException;
 import replication.ValueParser;
 import replication.implementation.CustomReplicationSettings;
 import replication.implementation.NotImplementedException;
-import replication.interfaces.IValueParser;
 
 public class FixedLengthLineHandler extends ILineHandler {
 
 	private static ILogNode logger = Core.getLogger("FlatFileExport");
 	private Writer writer;
+	private char[] lineEnd;
+	private char[] line;
+	private int lineLength = 0;
+	private StringBuilder numberBuffer = new StringBuilder(32);
 
 	public FixedLengthLineHandler() {
 
@@ -50,6 +61,9 @@ public class FixedLengthLineHandler extends ILineHandler {
 		this.context = context;
 		this.writer = writer;
 		this.config = config;
+
+		this.lineEnd = config.getLineEnd().toCharArray();
+		this.line = new char[(config.getTotalLength() != null ? config.getTotalLength() : 0) + this.lineEnd.length];
 	}
 
 	@Override
@@ -60,45 +74,58 @@ public class FixedLengthLineHandler extends ILineHandler {
 
 	@Override
 	public void writeLine( IMendixObject object ) throws CoreException {
+		this.writeValues(this.getValues(object));
+	}
+
+	@Override
+	public void writeValues( Object[] values ) throws CoreException {
+		if ( this.aggregates != null )
+			this.aggregates.add(this.config, values);
+
 		try {
-			StringBuilder builder = this.getLineContent(object);
-			if ( builder.length() > 0 )
-				this.writer.append(builder.toString() + this.config.getLineEnd());
+			this.renderValues(values);
+			if ( this.lineLength > 0 ) {
+				this.append(this.lineEnd);
+				this.writer.write(this.line, 0, this.lineLength);
+			}
 		}
 		catch( IOException e ) {
 			throw new CoreException(e);
 		}
 	}
 
-	protected StringBuilder getLineContent( IMendixObject object ) throws CoreException {
-		StringBuilder builder = new StringBuilder(this.config.getTotalLength());
+	/**
+	 * Render all columns from the retrieved values into the line buffer
+	 */
+	protected void renderValues( Object[] values ) throws CoreException {
+		this.lineLength = 0;
 
-		for( Entry<Integer, ColumnConfig> entry : this.config.getColumns().entrySet() ) {
-			ColumnConfig config = entry.getValue();
-			IMendixObject column = config.getColumnObj();
-			Integer colNr = entry.getKey();
-
-			String value = null;
+		ColumnConfig[] columnPlan = this.config.getColumnPlan();
+		for( int i = 0; i < columnPlan.length; i++ ) {
+			ColumnConfig config = columnPlan[i];
+			CharSequence value = null;
 
 			switch (config.getValueSource()) {
 			case Attribute:
-				value = this.getValueFromAttribute(colNr, config, column, object);
+				value = getValueByType(config, config.getRenderType(), values[i], config.getMask());
 				break;
 			case Reference:
-				value = this.getValueFromReference(config, column, object);
+				if ( values[i] != NO_REFERENCED_OBJECT )
+					value = getValueByType(config, config.getRenderType(), values[i], config.getMask());
 				break;
 			case StaticValue:
-				value = config.getStaticValue();
+				if ( this.isAggregate(config) )
+					value = this.getAggregateText(config);
+				else
+					value = config.getStaticValue();
 				break;
 			case Newline:
-				builder.append(this.config.getLineEnd());
+				this.append(this.lineEnd);
 				continue;
 			}
 
-			builder.append(generateFixedLengthOutput(this.config, value, config));
+			this.appendFixedLengthOutput(value, config);
 		}
-
-		return builder;
 	}
 
 	@Override
@@ -108,24 +135,9 @@ public class FixedLengthLineHandler extends ILineHandler {
 
 	@Override
 	public void importFromFile( BufferedReader reader, IMendixObject importFile, IMendixObject parameterObject, String referenceName ) throws CoreException, IOException {
-		// throw new CoreException("This function is not implemented");
-
-		LineFormat format = new LineFormat();
+		LineFormat format = this.createLineFormat();
 		FlatFileParser ffp = new FlatFileParser();
 
-		for( Entry<Integer, ColumnConfig> entry : this.config.getColumns().entrySet() ) {
-			ColumnConfig config = entry.getValue();
-			IMendixObject column = config.getColumnObj();
-
-			Integer startPos = column.getValue(this.context, Field.MemberNames.FlatFilePosition.toString());
-			Integer length = column.getValue(this.context, Field.MemberNames.Length.toString());
-			Integer colNr = column.getValue(this.context, Field.MemberNames.ColNumber.toString());
-
-			format.defineNextField(String.valueOf(colNr), (startPos + length - 1)); // -1 because we are looking for position not length
-
-			// TODO specify code that determines which format to use.
-			// ffp.declare( new ConstantFoundInLineCondition(format), format );
-		}
 		FlatFileLineParser lineParser = new FlatFileLineParser(this, parameterObject, referenceName);
 		ffp.addListener(lineParser);
 
@@ -137,15 +149,236 @@ public class FixedLengthLineHandler extends ILineHandler {
 		catch( FFPParseException e ) {
 			throw new CoreException("Unable to evaluate the flat file", e);
 		}
-		lineParser.info.finished();
+		lineParser.finished();
 	}
-	
-	private static class FlatFileLineParser implements FlatFileParser.Listener {
+
+	/**
+	 * Import the file by mapping it into memory instead of reading it line by line. Every record has the same width, the
+	 * end of the last field plus the line separator, so the offset of each record is known up front and ranges of records
+	 * are decoded on the import threads. The values are taken directly from the mapped bytes, the lines are added to the
+	 * import in the order of the file.
+	 *
+	 * Only files in a single byte character set, or UTF-8 files that contain only ASCII characters, can be imported this
+	 * way. The whole file is validated before anything is imported.
+	 *
+	 * @param charsetName the character set of the file, or null to detect it
+	 * @return false when the layout or the character set of the file doesn't allow a mapped import, nothing has been
+	 *         imported and the file should be imported with {@link #importFromFile(BufferedReader, IMendixObject)}
+	 */
+	public boolean importFromMappedFile( File file, String charsetName, int threads, int chunkSize, IMendixObject parameterObject, String referenceName ) throws CoreException, IOException {
+		try( FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ) ) {
+			if ( channel.size() > Integer.MAX_VALUE ) {
+				logger.debug("The file is too large to be mapped, importing it line by line");
+				return false;
+			}
+			ByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+
+			byte[] sample = new byte[Math.min(buffer.limit(), ImportCharset.SAMPLE_SIZE)];
+			buffer.get(sample);
+			Charset charset;
+			int offset = 0;
+			if ( charsetName != null && !charsetName.isEmpty() )
+				charset = Charset.forName(charsetName);
+			else {
+				charset = ImportCharset.getCharset(sample, sample.length, sample.length == buffer.limit());
+				offset = ImportCharset.getBomLength(sample, sample.length);
+			}
+
+			boolean asciiOnly = (charset == StandardCharsets.UTF_8 || charset == StandardCharsets.US_ASCII);
+			if ( !asciiOnly && (!charset.canEncode() || charset.newEncoder().maxBytesPerChar() != 1) ) {
+				logger.debug("The character set: " + charset.name() + " uses multiple bytes per character, importing the file line by line");
+				return false;
+			}
+
+			LineFormat format = this.createLineFormat();
+			MappedLayout layout = MappedLayout.create(format, buffer, offset, asciiOnly);
+			if ( layout == null ) {
+				logger.debug("The records of the file don't all have the width of the template, importing the file line by line");
+				return false;
+			}
+
+			FlatFileLineParser lineParser = new FlatFileLineParser(this, parameterObject, referenceName);
+			ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads), new FileHandler.ExportThreadFactory("FlatFileImport-Mapped"));
+			try {
+				// Limit the nr of decoded ranges in memory, decoding continues while the oldest range is being imported
+				int maxPending = Math.max(1, threads) * 2;
+				Deque<Future<String[][]>> pending = new ArrayDeque<Future<String[][]>>();
+
+				chunkSize = Math.max(1, chunkSize);
+				int lineNumber = 1;
+				for( int first = 0; first < layout.records; first += chunkSize ) {
+					// Every range uses its own view of the buffer, the position of a buffer is not thread safe
+					pending.add(executor.submit(new MappedRecordParser(layout, buffer.duplicate(), charset, first, Math.min(chunkSize, layout.records - first))));
+
+					while( pending.size() >= maxPending )
+						lineNumber = addRecords(lineParser, format, FileHandler.waitFor(pending.poll()), lineNumber);
+				}
+				while( !pending.isEmpty() )
+					lineNumber = addRecords(lineParser, format, FileHandler.waitFor(pending.poll()), lineNumber);
+			}
+			finally {
+				executor.shutdownNow();
+			}
+			lineParser.finished();
+
+			return true;
+		}
+	}
+
+	/**
+	 * @return the line number of the record after the last record
+	 */
+	private static int addRecords( FlatFileLineParser lineParser, LineFormat format, String[][] records, int lineNumber ) {
+		for( String[] values : records ) {
+			// Blank records are skipped, but counted, just like the parser does
+			if ( values != null )
+				lineParser.lineParsed(format, lineNumber, lineNumber, values);
+			lineNumber++;
+		}
+
+		return lineNumber;
+	}
+
+	/**
+	 * The position of the records in a mapped file, and of the fields in a record
+	 */
+	private static class MappedLayout {
+		private int offset;
+		private int width;
+		private int recordLength;
+		private int records;
+		private int[] starts;
+		private int[] ends;
+
+		/**
+		 * Validate that every record in the buffer has the width of the format, and is terminated by the line separator of
+		 * the format. Only the last record may be without a line separator. The records may not contain any other line
+		 * breaks, and when asciiOnly is true only bytes below 0x80.
+		 *
+		 * @return the layout of the records, or null when the file doesn't match the format
+		 */
+		private static MappedLayout create( LineFormat format, ByteBuffer buffer, int offset, boolean asciiOnly ) {
+			MappedLayout layout = new MappedLayout();
+			layout.offset = offset;
+			layout.starts = new int[format.getFieldsCount(1)];
+			layout.ends = new int[layout.starts.length];
+
+			int i = 0;
+			for( Iterator<?> fields = format.iterator(); fields.hasNext(); i++ ) {
+				LineFormat.FieldInfo field = (LineFormat.FieldInfo) fields.next();
+				layout.starts[i] = field.getStart();
+				layout.ends[i] = field.getEnd();
+				layout.width = Math.max(layout.width, field.getEnd());
+			}
+			if ( layout.width == 0 || format.getPhysicalLinesCount() != 1 )
+				return null;
+
+			byte[] separator = format.getLineSeparator().getBytes(StandardCharsets.US_ASCII);
+			layout.recordLength = layout.width + separator.length;
+
+			int size = buffer.limit() - offset;
+			layout.records = size / layout.recordLength;
+			int remainder = size % layout.recordLength;
+			if ( remainder == layout.width )
+				layout.records++;
+			else if ( remainder != 0 )
+				return null;
+
+			for( int record = 0; record < layout.records; record++ ) {
+				int start = offset + record * layout.recordLength, end = start + layout.width;
+				for( int pos = start; pos < end; pos++ ) {
+					byte b = buffer.get(pos);
+					if ( b == '\n' || b == '\r' || (asciiOnly && b < 0) )
+						return null;
+				}
+				for( int s = 0; s < separator.length && end + s < buffer.limit(); s++ ) {
+					if ( buffer.get(end + s) != separator[s] )
+						return null;
+				}
+			}
+
+			return layout;
+		}
+	}
+
+	/**
+	 * Decodes the values of a range of records from the mapped file
+	 */
+	private static class MappedRecordParser implements Callable<String[][]> {
+		private MappedLayout layout;
+		private ByteBuffer buffer;
+		private Charset charset;
+		private int firstRecord;
+		private int count;
+
+		private MappedRecordParser( MappedLayout layout, ByteBuffer buffer, Charset charset, int firstRecord, int count ) {
+			this.layout = layout;
+			this.buffer = buffer;
+			this.charset = charset;
+			this.firstRecord = firstRecord;
+			this.count = count;
+		}
+
+		@Override
+		public String[][] call() {
+			MappedLayout layout = this.layout;
+			byte[] record = new byte[layout.width];
+			String[][] records = new String[this.count][];
+
+			for( int i = 0; i < this.count; i++ ) {
+				this.buffer.position(layout.offset + (this.firstRecord + i) * layout.recordLength);
+				this.buffer.get(record);
+				if ( isBlank(record) )
+					continue;
+
+				String[] values = new String[layout.starts.length];
+				for( int f = 0; f < values.length; f++ )
+					values[f] = new String(record, layout.starts[f], layout.ends[f] - layout.starts[f], this.charset);
+				records[i] = values;
+			}
+
+			return records;
+		}
+
+		private static boolean isBlank( byte[] record ) {
+			for( byte b : record ) {
+				if ( (b & 0xFF) > ' ' )
+					return false;
+			}
+
+			return true;
+		}
+	}
+
+	/**
+	 * @return the format with a field for each column, named after the column nr
+	 */
+	protected LineFormat createLineFormat() {
+		LineFormat format = new LineFormat();
+		for( Entry<Integer, ColumnConfig> entry : this.config.getColumns().entrySet() ) {
+			ColumnConfig config = entry.getValue();
+			format.defineNextField(String.valueOf(config.getColNumber()), (config.getFlatFilePosition() + config.getLength() - 1)); // -1 because we are looking for position not length
+		}
+
+		return format;
+	}
+
+	/**
+	 * Imports the parsed lines of a single template. When the template is a record type under another record type, every
+	 * object is associated to the object of the last line of the parent record type that has been parsed before it.
+	 * The parent objects are only resolved when a batch of objects is processed, the objects of the parent record type
+	 * are processed first.
+	 */
+	static class FlatFileLineParser implements FlatFileParser.LineViewListener {
 		private FixedLengthLineHandler _self;
 		private Map<Integer, ColumnConfig> columns;
 		private MetaInfo info;
 		private FFValueParser vparser;
 		private CustomReplicationSettings settings;
+
+		private FlatFileLineParser parent;
+		/** The object of the last parsed line */
+		private MetaInfoObject lastObject;
 		
 		protected FlatFileLineParser(FixedLengthLineHandler _self, IMendixObject parameterObjectId, String associationName) throws CoreException {
 			this._self = _self;
@@ -157,24 +390,51 @@ public class FixedLengthLineHandler extends ILineHandler {
 			this.info = new MetaInfo(this.settings, this.vparser, "DelimitedFileImport");
 
 		}
+
+		/**
+		 * Import the lines as the children of the lines of the parent record type, over the association
+		 */
+		protected FlatFileLineParser(FixedLengthLineHandler _self, FlatFileLineParser parent, String associationName) throws CoreException {
+			this(_self, (IMendixObject) null, null);
+			this.parent = parent;
+			this.settings.setParentAssociation(associationName);
+			this.info.setParentInfo(parent.info);
+		}
 		
 		@Override
 		public void lineParsed( LineFormat format, int logicalLinecount, int physicalLineCount, String[] values ) {
-			if( this.columns.size() > values.length )
-				throw new CoreRuntimeException("Incorrect line legth, found: " + values.length + " expecting " + this.columns.size() + ", ll:" + logicalLinecount + ", pl:" + physicalLineCount);
-			
-			for( int colNr = 1; colNr <= values.length; colNr++ ) {
-				System.out.println(values[colNr-1]);
-				
+			this.addLine(logicalLinecount, physicalLineCount, values.length, values, null);
+		}
+
+		/**
+		 * Only the values of the Attribute and Reference columns are taken from the line
+		 */
+		@Override
+		public void lineParsed( LineFormat format, int logicalLinecount, int physicalLineCount, LineView line ) {
+			this.addLine(logicalLinecount, physicalLineCount, line.getFieldsCount(), null, line);
+		}
+
+		private void addLine( int logicalLinecount, int physicalLineCount, int nrOfValues, String[] values, LineView line ) {
+			if( this.columns.size() > nrOfValues )
+				throw new CoreRuntimeException("Incorrect line legth, found: " + nrOfValues + " expecting " + this.columns.size() + ", ll:" + logicalLinecount + ", pl:" + physicalLineCount);
+
+			if ( this.parent != null && this.parent.lastObject == null )
+				throw new CoreRuntimeException("Line: " + logicalLinecount + " of template: " + this._self.config.getTemplateName() + " is not preceded by a line of its parent template");
+
+			MetaInfoObject lineObject = null;
+			for( int colNr = 1; colNr <= nrOfValues; colNr++ ) {
 				ColumnConfig cConfig = this.columns.get(colNr);
 				
 				switch (cConfig.getValueSource()) {
 				case Attribute:
 				case Reference:
 					String fieldAlias = String.valueOf(colNr);
+					String value = (values != null ? values[colNr-1] : line.getString(colNr-1));
 					
 					try {
-						this.info.addValue(String.valueOf(logicalLinecount), fieldAlias, this.vparser.getValue(this.settings.getMemberType(fieldAlias), fieldAlias, values[colNr-1]));
+						MetaInfoObject object = this.info.addValue(String.valueOf(logicalLinecount), fieldAlias, this.vparser.getValue(this.settings.getMemberType(fieldAlias), fieldAlias, value));
+						if ( object != null )
+							lineObject = object;
 					}catch (Exception e) {
 						throw new CoreRuntimeException(e);
 					}
@@ -185,43 +445,71 @@ public class FixedLengthLineHandler extends ILineHandler {
 					break;
 				}
 			}
-		}
-	}
 
-	private static String generateFixedLengthOutput( TemplateConfiguration config, String value, ColumnConfig cConfig) throws CoreException {
-		try {
-			// String mask = determineMask(field);
-			// logger.debug("Using mask: " + mask);
-			String outputValue = padIfString(cConfig, value);
-
-			if ( outputValue.length() > cConfig.getLength() ) {
-				logger.error("Field: " + config.getTemplateName() + " - " + cConfig.getColNumber() + " value is to long: " + outputValue
-						.length() + " instead of: " + cConfig.getLength() + " the value is: " + outputValue);
-				outputValue = outputValue.substring(0, cConfig.getLength());
+			if ( lineObject != null ) {
+				if ( this.parent != null )
+					lineObject.setParentObject(this.parent.lastObject);
+				this.lastObject = lineObject;
 			}
-
-			logger.debug("Appending value: " + outputValue);
-			return outputValue;
 		}
-		catch( Exception e ) {
-			throw new CoreException("Unable to export Field: " + config.getTemplateName() + " - " + cConfig
-					.getColNumber() + " with value: " + value + ", error: " + e.getMessage(), e);
+
+		protected void finished() throws MendixReplicationException {
+			this.info.finished();
 		}
 	}
 
-	private static String padIfString( ColumnConfig cConfig, String value ) {
-		// Catch null values since the pad function doesn't work for null values.
+	/**
+	 * Append the value to the line, padded or truncated to the length of the column.
+	 * The padding characters are repeated in the same way as StringUtils.leftPad and rightPad do.
+	 */
+	private void appendFixedLengthOutput( CharSequence value, ColumnConfig cConfig ) throws CoreException {
+		// Catch null values since there is nothing to pad
 		if ( value == null )
 			value = "";
 
-		String appendChar = cConfig.getAppendCharacter();
-		SuffixOrPrefix location = cConfig.getSuffixOrPrefix();
-		if ( location == SuffixOrPrefix.Prefix ) {
-			return StringUtils.leftPad(value, cConfig.getLength(), appendChar);
+		int length = cConfig.getLength(), valueLength = value.length();
+		if ( length < 0 )
+			throw new CoreException("Unable to export Field: " + this.config.getTemplateName() + " - " + cConfig
+					.getColNumber() + " with value: " + value + ", error: invalid length " + length);
+
+		int start = this.lineLength;
+		this.ensureCapacity(length);
+
+		int pads = length - valueLength;
+		if ( pads > 0 ) {
+			char[] padChars = cConfig.getPadCharacters();
+			int padStart = (cConfig.padAsPrefix() ? start : start + valueLength), valueStart = (cConfig.padAsPrefix() ? start + pads : start);
+			for( int i = 0; i < pads; i++ )
+				this.line[padStart + i] = padChars[i % padChars.length];
+			getChars(value, valueLength, this.line, valueStart);
 		}
 		else {
-			return StringUtils.rightPad(value, cConfig.getLength(), appendChar);
+			if ( pads < 0 )
+				logger.error("Field: " + this.config.getTemplateName() + " - " + cConfig.getColNumber() + " value is to long: " + valueLength + " instead of: " + length + " the value is: " + value);
+			getChars(value, length, this.line, start);
 		}
+		this.lineLength += length;
+
+		if ( logger.isDebugEnabled() )
+			logger.debug("Appending value: " + new String(this.line, start, length));
+	}
+
+	private static void getChars( CharSequence value, int end, char[] dst, int dstBegin ) {
+		if ( value instanceof String )
+			((String) value).getChars(0, end, dst, dstBegin);
+		else
+			((StringBuilder) value).getChars(0, end, dst, dstBegin);
+	}
+
+	private void append( char[] chars ) {
+		this.ensureCapacity(chars.length);
+		System.arraycopy(chars, 0, this.line, this.lineLength, chars.length);
+		this.lineLength += chars.length;
+	}
+
+	private void ensureCapacity( int additionalLength ) {
+		if ( this.lineLength + additionalLength > this.line.length )
+			this.line = Arrays.copyOf(this.line, Math.max(this.line.length * 2, this.lineLength + additionalLength));
 	}
 
 	// private static String determineMask(Field field) {
@@ -257,89 +545,15 @@ public class FixedLengthLineHandler extends ILineHandler {
 	// return "%" + mask;
 	// }
 
-	private PrimitiveType determineRenderType( IMendixObject columnObject ) {
-		FieldDataType dataType = FieldDataType.valueOf((String) columnObject.getValue(this.context, Field.MemberNames.FormatAsDataType.toString()));
-		switch (dataType) {
-		case DecimalType:
-			return PrimitiveType.Decimal;
-		case IntegerType:
-			return PrimitiveType.Long;
-		case DateType:
-			return PrimitiveType.DateTime;
-		case StringType:
-			return PrimitiveType.String;
-		}
-
-		return null;
-	}
-
-	private String getValueFromReference( ColumnConfig config, IMendixObject highlightObject, IMendixObject exportObject ) throws CoreException {
-		List<IMendixObject> referenceResult = this.getResultByHighlight(highlightObject, exportObject, 1);
-
-		return this.getValueFromReference(config, referenceResult, highlightObject, 0);
-	}
-
-	private String getValueFromReference( ColumnConfig config, List<IMendixObject> referenceResult, IMendixObject columnObject, int listPosition ) throws CoreException {
-		String value = "";
-
-		if ( referenceResult.size() > listPosition ) {
-			IMendixObject referencedObject = referenceResult.get(listPosition);
-			IMendixObject member = Core.retrieveId(this.context,
-					(IMendixIdentifier) columnObject.getValue(this.context, Field.MemberNames.Field_MxObjectMember.toString()));
-			String memberName = (String) member.getValue(this.context, MxObjectMember.MemberNames.AttributeName.toString());
-
-			value = getValueByType(config, this.determineRenderType(columnObject), referencedObject.getValue(this.context, memberName),
-					config.getMask());
-		}
-
-		if ( value == null )
-			return "";
-
-		return value;
-	}
-
-	public List<IMendixObject> getResultByHighlight( IMendixObject columnObject, IMendixObject exportObject, int limit ) throws CoreException {
-		IMendixObject reference = Core.retrieveId(this.context,
-				(IMendixIdentifier) columnObject.getValue(this.context, Field.MemberNames.Field_MxObjectReference.toString()));
-		IMendixObject objectType = Core.retrieveId(this.context,
-				(IMendixIdentifier) columnObject.getValue(this.context, Field.MemberNames.Field_MxObjectType_Reference.toString()));
-
-		String referenceName = (String) reference.getValue(this.context, MxObjectReference.MemberNames.CompleteName.toString()),
-				objectTypeName = (String) objectType.getValue(this.context, MxObjectType.MemberNames.CompleteName.toString());
-
-		HashMap<String, String> sortMap = new HashMap<String, String>();
-		sortMap.put("createdDate", "ASC");
-		return Core.retrieveXPathQuery(this.context, "//" + objectTypeName + "[" + referenceName + "='" + exportObject.getId().toLong() + "']", limit,
-				0, sortMap);
-	}
-
-	private String getValueFromAttribute( int colNr, ColumnConfig config, IMendixObject columnObject, IMendixObject exportObject ) throws CoreException {
-		IMendixIdentifier memberId = columnObject.getValue(this.context, Field.MemberNames.Field_MxObjectMember.toString());
-		if ( memberId == null )
-			throw new CoreException("No attribute selected for field: " + colNr + "-" + columnObject.getValue(this.context,
-					Field.MemberNames.Description.toString()));
-		IMendixObject member = Core.retrieveId(this.context, (IMendixIdentifier) memberId);
-		Object value = exportObject.getValue(this.context,
-				(String) member.getValue(this.context, MxObjectMember.MemberNames.AttributeName.toString()));
-
-		String attrValue = getValueByType(config, this.determineRenderType(columnObject), value, config.getMask());
-		// if (attrValue == null)
-		// return ;
-
-		return attrValue;
-	}
-
-
-	private static String getValueByType( ColumnConfig columnConfig, PrimitiveType type, Object value, String mask ) throws CoreException {
-		String returnValue = null;
+	private CharSequence getValueByType( ColumnConfig columnConfig, PrimitiveType type, Object value, String mask ) throws CoreException {
+		CharSequence returnValue = null;
 		
-		IValueParser microflowParser = columnConfig.getMicroflow();  
-		if( microflowParser != null )
-			return  ValueParser.getTrimmedValue( microflowParser.parseValue(value), null, null );
+		if( columnConfig.getMicroflow() != null )
+			return  ValueParser.getTrimmedValue( columnConfig.parseWithMicroflow(this.context, value), null, null );
 		
 		switch (type) {
 		case Decimal:
-			returnValue = ValueParser.getStringValueFromNumber(value, columnConfig.getNrOfDecimals());
+			returnValue = this.getNumberValue(value, columnConfig.getNrOfDecimals());
 			break;
 		case Integer:
 		case AutoNumber:
@@ -355,7 +569,7 @@ public class FixedLengthLineHandler extends ILineHandler {
 		default:
 			// Compatibility fix since Currency is no longer part of the latest release
 			if ( "Currency".equals(type.toString()) || "Float".equals(type.toString()) )
-				returnValue = ValueParser.getStringValueFromNumber(value, columnConfig.getNrOfDecimals());
+				returnValue = this.getNumberValue(value, columnConfig.getNrOfDecimals());
 			else
 				logger.warn("Unknown attribute type: " + type);
 
@@ -365,4 +579,22 @@ public class FixedLengthLineHandler extends ILineHandler {
 		return returnValue;
 	}
 
+	private CharSequence getAggregateText( ColumnConfig columnConfig ) throws CoreException {
+		Object value = this.getAggregateValue(columnConfig);
+		if ( columnConfig.getRenderType() == PrimitiveType.Decimal )
+			return this.getNumberValue(value, columnConfig.getNrOfDecimals());
+
+		return ValueParser.getTrimmedValue(value, null, columnConfig.getMask());
+	}
+
+	/**
+	 * @return the formatted number in the number buffer, which is re-used for every value
+	 */
+	private CharSequence getNumberValue( Object value, Integer precision ) throws CoreException {
+		this.numberBuffer.setLength(0);
+		if ( !ValueParser.appendNumber(value, precision, this.numberBuffer) )
+			return null;
+
+		return this.numberBuffer;
+	}
 }
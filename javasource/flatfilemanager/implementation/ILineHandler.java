@@ -3,6 +3,8 @@ package flatfilemanager.implementation;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.util.HashMap;
 import java.util.List;
 
@@ -11,7 +13,9 @@ import com.mendix.core.CoreException;
 import com.mendix.systemwideinterfaces.core.IContext;
 import com.mendix.systemwideinterfaces.core.IMendixIdentifier;
 import com.mendix.systemwideinterfaces.core.IMendixObject;
+import com.mendix.systemwideinterfaces.core.meta.IMetaPrimitive.PrimitiveType;
 
+import flatfilemanager.implementation.TemplateConfiguration.ColumnConfig;
 import flatfilemanager.proxies.DataSource;
 import flatfilemanager.proxies.Field;
 import mxmodelreflection.proxies.MxObjectMember;
@@ -28,8 +32,14 @@ import replication.implementation.MFValueParser;
 import replication.interfaces.IValueParser;
 
 public abstract class ILineHandler {
+	/** The value of a Reference column when the export object doesn't have a referenced object */
+	public static final Object NO_REFERENCED_OBJECT = new Object();
+
 	protected IContext context;
 	protected TemplateConfiguration config;
+	protected ReferencePrefetch referencePrefetch;
+	protected ExportAggregates aggregates;
+	private Object[] lineValues;
 
 
 	public abstract void initialize( IContext context, Writer writer, TemplateConfiguration config );
@@ -38,9 +48,110 @@ public abstract class ILineHandler {
 
 	public abstract void writeLine(IMendixObject object) throws CoreException;
 
+	/**
+	 * Write a line from values that have been retrieved already, one value for each column in the column plan. For a
+	 * Reference column the value is the attribute of the first referenced object, or NO_REFERENCED_OBJECT.
+	 */
+	public abstract void writeValues(Object[] values) throws CoreException;
+
 	public abstract void importFromFile(BufferedReader reader, IMendixObject importFile) throws CoreException, IOException;
 	public abstract void importFromFile(BufferedReader reader, IMendixObject importFile, IMendixObject parameterObject, String referenceName) throws CoreException, IOException;
 	
+	/**
+	 * Retrieve the objects that are associated to the export object over the reference configured in the column, ordered by their creation date
+	 */
+	public List<IMendixObject> getResultByHighlight( ColumnConfig column, IMendixObject exportObject, int limit ) throws CoreException {
+		HashMap<String, String> sortMap = new HashMap<String, String>();
+		sortMap.put("createdDate", "ASC");
+		return Core.retrieveXPathQuery(this.context, "//" + column.getReferenceObjectType() + "[" + column.getReferenceName() + "='" + exportObject.getId().toLong() + "']", limit, 0, sortMap);
+	}
+
+	/**
+	 * @return the values of the object for all columns in the column plan, the array is re-used for every line
+	 */
+	protected Object[] getValues( IMendixObject object ) throws CoreException {
+		ColumnConfig[] columnPlan = this.config.getColumnPlan();
+		if ( this.lineValues == null )
+			this.lineValues = new Object[columnPlan.length];
+
+		for( int i = 0; i < columnPlan.length; i++ ) {
+			ColumnConfig column = columnPlan[i];
+			Object value = null;
+
+			switch (column.getValueSource()) {
+			case Attribute:
+				value = object.getValue(this.context, getAttributeName(column));
+				break;
+			case Reference:
+				IMendixObject referencedObject = this.getFirstReferencedObject(column, object);
+				if ( referencedObject != null )
+					value = referencedObject.getValue(this.context, getAttributeName(column));
+				else
+					value = NO_REFERENCED_OBJECT;
+				break;
+			default:
+				break;
+			}
+			this.lineValues[i] = value;
+		}
+
+		return this.lineValues;
+	}
+
+	/**
+	 * Collect the values of every line that is written in the aggregates, or null when no aggregates are used
+	 */
+	public void setAggregates( ExportAggregates aggregates ) {
+		this.aggregates = aggregates;
+	}
+
+	/**
+	 * @return true when the static value of the column is an aggregate that has to be rendered
+	 */
+	protected boolean isAggregate( ColumnConfig column ) {
+		return column.getAggregate() != null && this.aggregates != null;
+	}
+
+	/**
+	 * @return the current value of the aggregate in the column, sums are rounded when the column is an integer
+	 */
+	protected Object getAggregateValue( ColumnConfig column ) {
+		Object value = this.aggregates.getValue(column.getAggregate());
+		if ( value instanceof BigDecimal && column.getRenderType() == PrimitiveType.Long )
+			return ((BigDecimal) value).setScale(0, RoundingMode.HALF_UP).longValue();
+
+		return value;
+	}
+
+	/**
+	 * Set the prefetched associated objects for the page that is being exported, or null to always query the reference
+	 */
+	public void setReferencePrefetch( ReferencePrefetch referencePrefetch ) {
+		this.referencePrefetch = referencePrefetch;
+	}
+
+	/**
+	 * @return the first object associated to the export object over the reference of the column, or null if there is none
+	 */
+	protected IMendixObject getFirstReferencedObject( ColumnConfig column, IMendixObject exportObject ) throws CoreException {
+		if ( this.referencePrefetch != null && this.referencePrefetch.covers(column, exportObject) )
+			return this.referencePrefetch.getFirstObject(column, exportObject);
+
+		List<IMendixObject> referenceResult = this.getResultByHighlight(column, exportObject, 1);
+		if ( referenceResult.size() > 0 )
+			return referenceResult.get(0);
+
+		return null;
+	}
+
+	protected String getAttributeName( ColumnConfig column ) throws CoreException {
+		String attributeName = column.getAttributeName();
+		if ( attributeName == null )
+			throw new CoreException("No attribute selected for field: " + column.getColNumber() + "-" + column.getDescription());
+
+		return attributeName;
+	}
+	
 	public CustomReplicationSettings initializeSettings(IMendixObject parameterObjectId, String associationName ) throws CoreException {
 		CustomReplicationSettings settings = new CustomReplicationSettings(this.context, this.config.getObjectType(), new ErrorHandler());
 		ObjectConfig mainConfig = settings.getMainObjectConfig();
@@ -0,0 +1,153 @@
+package flatfilemanager.implementation;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.ibm.icu.text.CharsetDetector;
+import com.ibm.icu.text.CharsetMatch;
+import com.mendix.core.Core;
+import com.mendix.logging.ILogNode;
+
+/**
+ * Determines the character set of an imported file while it is being read, only the first part of the file is
+ * inspected. A byte order mark decides the character set and is skipped, otherwise the sample is used as UTF-8 when it
+ * is valid UTF-8, and when it isn't the ICU CharsetDetector determines the character set from the sample.
+ */
+public class ImportCharset {
+
+	private static ILogNode logger = Core.getLogger("FlatFileExport");
+
+	/** The nr of bytes at the start of the file that are used to detect the character set */
+	static final int SAMPLE_SIZE = 256 * 1024;
+
+	private static final Charset UTF_32BE = Charset.forName("UTF-32BE"), UTF_32LE = Charset.forName("UTF-32LE");
+
+	/**
+	 * @param charsetName the character set of the file, or null to detect it
+	 * @return the reader that decodes the stream, without the byte order mark
+	 */
+	public static Reader openReader( InputStream in, String charsetName ) throws IOException {
+		BufferedInputStream stream = new BufferedInputStream(in, 64 * 1024);
+		if ( charsetName != null && !charsetName.isEmpty() )
+			return new InputStreamReader(stream, charsetName);
+
+		stream.mark(SAMPLE_SIZE);
+		byte[] sample = new byte[SAMPLE_SIZE];
+		int length = 0, read;
+		while( length < sample.length && (read = stream.read(sample, length, sample.length - length)) > 0 )
+			length += read;
+		stream.reset();
+
+		Charset charset = getCharset(sample, length, length < SAMPLE_SIZE);
+		for( int i = getBomLength(sample, length); i > 0; i-- )
+			stream.read();
+
+		if ( logger.isDebugEnabled() )
+			logger.debug("Importing the file using character set: " + charset.name());
+
+		return new InputStreamReader(stream, charset);
+	}
+
+	/**
+	 * @param sample the first bytes of the file
+	 * @param complete false when the sample is only the first part of the file
+	 * @return the character set of the byte order mark, or of the content of the sample when there is no byte order mark
+	 */
+	public static Charset getCharset( byte[] sample, int length, boolean complete ) {
+		Charset charset = getBomCharset(sample, length);
+		if ( charset != null )
+			return charset;
+		if ( isUTF8(sample, length, complete) )
+			return StandardCharsets.UTF_8;
+
+		return detect(sample, length);
+	}
+
+	/**
+	 * @return the nr of bytes of the byte order mark at the start of the sample, 0 when there is none
+	 */
+	public static int getBomLength( byte[] sample, int length ) {
+		Charset charset = getBomCharset(sample, length);
+		if ( charset == null )
+			return 0;
+		if ( charset == UTF_32BE || charset == UTF_32LE )
+			return 4;
+		if ( charset == StandardCharsets.UTF_8 )
+			return 3;
+
+		return 2;
+	}
+
+	private static Charset getBomCharset( byte[] sample, int length ) {
+		if ( startsWith(sample, length, 0x00, 0x00, 0xFE, 0xFF) )
+			return UTF_32BE;
+		if ( startsWith(sample, length, 0xFF, 0xFE, 0x00, 0x00) )
+			return UTF_32LE;
+		if ( startsWith(sample, length, 0xEF, 0xBB, 0xBF) )
+			return StandardCharsets.UTF_8;
+		if ( startsWith(sample, length, 0xFE, 0xFF) )
+			return StandardCharsets.UTF_16BE;
+		if ( startsWith(sample, length, 0xFF, 0xFE) )
+			return StandardCharsets.UTF_16LE;
+
+		return null;
+	}
+
+	private static boolean startsWith( byte[] sample, int length, int... bom ) {
+		if ( length < bom.length )
+			return false;
+
+		for( int i = 0; i < bom.length; i++ ) {
+			if ( (sample[i] & 0xFF) != bom[i] )
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @param complete false when the sample is only the first part of the file, the last character may be incomplete
+	 */
+	private static boolean isUTF8( byte[] sample, int length, boolean complete ) {
+		CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+
+		ByteBuffer bytes = ByteBuffer.wrap(sample, 0, length);
+		CharBuffer chars = CharBuffer.allocate(8 * 1024);
+		CoderResult result;
+		do {
+			chars.clear();
+			result = decoder.decode(bytes, chars, complete);
+			if ( result.isError() )
+				return false;
+		} while( result.isOverflow() );
+
+		chars.clear();
+		return !complete || !decoder.flush(chars).isError();
+	}
+
+	private static Charset detect( byte[] sample, int length ) {
+		byte[] text = (length == sample.length ? sample : Arrays.copyOf(sample, length));
+
+		CharsetDetector detector = new CharsetDetector();
+		detector.setText(text);
+		CharsetMatch match = detector.detect();
+		if ( match != null && Charset.isSupported(match.getName()) )
+			return Charset.forName(match.getName());
+
+		logger.warn("Unable to detect the character set of the file, importing it as UTF-8");
+		return StandardCharsets.UTF_8;
+	}
+}
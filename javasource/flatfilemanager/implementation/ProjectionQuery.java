@@ -0,0 +1,230 @@
+package flatfilemanager.implementation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.mendix.core.Core;
+import com.mendix.core.CoreException;
+import com.mendix.logging.ILogNode;
+import com.mendix.systemwideinterfaces.connectionbus.data.IDataRow;
+import com.mendix.systemwideinterfaces.connectionbus.data.IDataTable;
+import com.mendix.systemwideinterfaces.core.IContext;
+import com.mendix.systemwideinterfaces.core.IMendixIdentifier;
+import com.mendix.systemwideinterfaces.core.IMendixObject;
+import com.mendix.systemwideinterfaces.core.meta.IMetaAssociation;
+import com.mendix.systemwideinterfaces.core.meta.IMetaAssociation.AssociationOwner;
+import com.mendix.systemwideinterfaces.core.meta.IMetaAssociation.AssociationType;
+import com.mendix.systemwideinterfaces.core.meta.IMetaObject;
+import com.mendix.systemwideinterfaces.core.meta.IMetaPrimitive;
+import com.mendix.systemwideinterfaces.core.meta.IMetaPrimitive.PrimitiveType;
+
+import flatfilemanager.implementation.TemplateConfiguration.ColumnConfig;
+
+/**
+ * Exports the objects associated to an export object with an OQL query that only selects the attributes used in the
+ * template. Reference columns are joined into the same query, the rows are passed to the line handler without
+ * retrieving any objects.
+ *
+ * The lines are in the same order as when the objects are retrieved by the AssociatedObjectPager. Only templates
+ * without microflows, where every Reference column refers to at most one object, can be exported this way. For all
+ * other templates create returns null and the objects have to be retrieved.
+ */
+public class ProjectionQuery {
+
+	private static ILogNode logger = Core.getLogger("FlatFileExport");
+	private static final String ALIAS = "specifiedObject";
+
+	private IContext context;
+	private String sortAttribute;
+	private PrimitiveType sortType;
+	private String parentPath;
+
+	private String selectClause;
+	/** The index in the row for each column in the column plan, -1 for columns without a value */
+	private int[] rowIndexes;
+	private int sortIndex, idIndex;
+
+	private ProjectionQuery( IContext context, String sortAttribute, PrimitiveType sortType, String parentPath ) {
+		this.context = context;
+		this.sortAttribute = sortAttribute;
+		this.sortType = sortType;
+		this.parentPath = parentPath;
+	}
+
+	/**
+	 * @return the query for the template, or null when the template can't be exported from a projection
+	 */
+	public static ProjectionQuery create( IContext context, TemplateConfiguration config, String objectType, String referenceName, String sortAttribute ) {
+		if ( config.usesMicroflows() )
+			return null;
+
+		IMetaPrimitive sortPrimitive = getPrimitive(objectType, sortAttribute);
+		String parentPath = AssociatedObjectPager.getParentPath(ALIAS, objectType, referenceName);
+		if ( sortPrimitive == null || parentPath == null || isSelfReference(referenceName) )
+			return null;
+
+		ProjectionQuery query = new ProjectionQuery(context, sortAttribute, sortPrimitive.getType(), parentPath);
+
+		StringBuilder select = new StringBuilder("SELECT ");
+		Map<String, String> joins = new LinkedHashMap<String, String>();
+
+		ColumnConfig[] columnPlan = config.getColumnPlan();
+		query.rowIndexes = new int[columnPlan.length];
+		int rowIndex = 0;
+		for( int i = 0; i < columnPlan.length; i++ ) {
+			ColumnConfig column = columnPlan[i];
+			query.rowIndexes[i] = -1;
+
+			String path;
+			switch (column.getValueSource()) {
+			case Attribute:
+				if ( !isExportable(objectType, column.getAttributeName()) )
+					return null;
+				path = ALIAS + "/" + quoteAttribute(column.getAttributeName());
+				break;
+			case Reference:
+				String joinObjectType = column.getReferenceObjectType();
+				if ( column.getReferenceName() == null || joinObjectType == null || !isExportable(joinObjectType, column.getAttributeName()) ||
+						!isSingleReference(column.getReferenceName(), objectType) )
+					return null;
+
+				String joinKey = column.getReferenceName() + "/" + joinObjectType;
+				String joinAlias = joins.get(joinKey);
+				if ( joinAlias == null ) {
+					joinAlias = "tbl_" + joins.size();
+					joins.put(joinKey, joinAlias);
+				}
+				path = joinAlias + "/" + quoteAttribute(column.getAttributeName());
+				break;
+			default:
+				continue;
+			}
+
+			select.append(path).append(" AS col").append(rowIndex).append(", ");
+			query.rowIndexes[i] = rowIndex++;
+		}
+
+		query.sortIndex = rowIndex++;
+		query.idIndex = rowIndex;
+		select.append(ALIAS).append("/").append(quoteAttribute(sortAttribute)).append(" AS sortValue, ").append(ALIAS).append("/ID AS ID");
+		select.append(" FROM ").append(AssociatedObjectPager.quote(objectType)).append(" AS ").append(ALIAS);
+		for( Map.Entry<String, String> join : joins.entrySet() ) {
+			String[] joinKey = join.getKey().split("/");
+			select.append(" LEFT JOIN ").append(ALIAS).append("/").append(AssociatedObjectPager.quote(joinKey[0])).append("/")
+					.append(AssociatedObjectPager.quote(joinKey[1])).append(" AS ").append(join.getValue());
+		}
+		query.selectClause = select.toString();
+
+		return query;
+	}
+
+	/**
+	 * Write a line for each object associated to the export object
+	 *
+	 * @return the nr of lines that have been written
+	 */
+	public int export( ILineHandler lineHandler, IMendixObject exportObject, int limit, boolean useKeyset ) throws CoreException {
+		Object[] values = new Object[this.rowIndexes.length];
+		useKeyset = useKeyset && AssociatedObjectPager.supportsKeyset(this.sortType);
+		String parentConstraint = this.parentPath + "=" + exportObject.getId().toLong();
+		String sortPath = ALIAS + "/" + quoteAttribute(this.sortAttribute);
+
+		int totalSize = 0, offset = 0, rowCount;
+		boolean emptySortValues = false;
+		Object lastSortValue = null;
+		Long lastId = null;
+		do {
+			StringBuilder query = new StringBuilder(this.selectClause);
+			query.append(" WHERE ").append(parentConstraint);
+			if ( !useKeyset ) {
+				query.append(" ORDER BY ").append(sortPath).append(" ASC LIMIT ").append(limit).append(" OFFSET ").append(offset);
+			}
+			else if ( emptySortValues ) {
+				query.append(" AND ").append(sortPath).append("=NULL");
+				if ( lastId != null )
+					query.append(" AND ").append(ALIAS).append("/ID>").append(lastId);
+				query.append(" ORDER BY ").append(ALIAS).append("/ID ASC LIMIT ").append(limit);
+			}
+			else {
+				query.append(" AND ").append(sortPath).append("!=NULL");
+				if ( lastId != null ) {
+					String lastValue = AssociatedObjectPager.getQueryValue(this.sortType, lastSortValue);
+					query.append(" AND (").append(sortPath).append(">").append(lastValue)
+							.append(" OR (").append(sortPath).append("=").append(lastValue)
+							.append(" AND ").append(ALIAS).append("/ID>").append(lastId).append("))");
+				}
+				query.append(" ORDER BY ").append(sortPath).append(" ASC, ").append(ALIAS).append("/ID ASC LIMIT ").append(limit);
+			}
+
+			if ( logger.isTraceEnabled() )
+				logger.trace("Exporting projection: " + query.toString());
+
+			IDataTable table = Core.retrieveOQLDataTable(this.context, query.toString());
+			rowCount = table.getRowCount();
+			for( IDataRow row : table.getRows() ) {
+				for( int i = 0; i < values.length; i++ )
+					values[i] = (this.rowIndexes[i] < 0 ? null : row.getValue(this.context, this.rowIndexes[i]));
+				lineHandler.writeValues(values);
+
+				lastSortValue = row.getValue(this.context, this.sortIndex);
+				lastId = getIdValue(row.getValue(this.context, this.idIndex));
+			}
+			totalSize += rowCount;
+			offset += limit;
+
+			// Continue with the objects without a sort value once all others have been exported
+			if ( useKeyset && rowCount < limit && !emptySortValues ) {
+				emptySortValues = true;
+				lastId = null;
+				rowCount = limit;
+			}
+		} while( rowCount == limit );
+
+		return totalSize;
+	}
+
+	private static Long getIdValue( Object value ) {
+		if ( value instanceof IMendixIdentifier )
+			return ((IMendixIdentifier) value).toLong();
+
+		return (Long) value;
+	}
+
+	private static IMetaPrimitive getPrimitive( String objectType, String attributeName ) {
+		IMetaObject metaObject = Core.getMetaObject(objectType);
+		if ( metaObject == null || attributeName == null )
+			return null;
+
+		return metaObject.getMetaPrimitive(attributeName);
+	}
+
+	/**
+	 * @return true when the attribute exists and can be retrieved in an OQL query
+	 */
+	private static boolean isExportable( String objectType, String attributeName ) {
+		IMetaPrimitive primitive = getPrimitive(objectType, attributeName);
+
+		return primitive != null && primitive.getType() != PrimitiveType.Binary;
+	}
+
+	/**
+	 * @return true when the export object refers to at most one object over the reference, so the join doesn't duplicate rows
+	 */
+	private static boolean isSingleReference( String referenceName, String objectType ) {
+		IMetaAssociation association = Core.getMetaAssociation(referenceName);
+		if ( association == null || association.getType() != AssociationType.REFERENCE || isSelfReference(referenceName) )
+			return false;
+
+		String parentObjectName = association.getParent().getName();
+		return association.getOwner() == AssociationOwner.BOTH || parentObjectName.equals(objectType) || Core.isSubClassOf(parentObjectName, objectType);
+	}
+
+	private static boolean isSelfReference( String referenceName ) {
+		IMetaAssociation association = Core.getMetaAssociation(referenceName);
+		return association != null && association.getParent().getName().equals(association.getChild().getName());
+	}
+
+	private static String quoteAttribute( String attributeName ) {
+		return "\"" + attributeName + "\"";
+	}
+}
@@ -0,0 +1,151 @@
+package flatfilemanager.implementation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.mendix.core.Core;
+import com.mendix.core.CoreException;
+import com.mendix.logging.ILogNode;
+import com.mendix.systemwideinterfaces.core.IContext;
+import com.mendix.systemwideinterfaces.core.IMendixIdentifier;
+import com.mendix.systemwideinterfaces.core.IMendixObject;
+import com.mendix.systemwideinterfaces.core.meta.IMetaAssociation;
+import com.mendix.systemwideinterfaces.core.meta.IMetaAssociation.AssociationOwner;
+
+import flatfilemanager.implementation.TemplateConfiguration.ColumnConfig;
+import flatfilemanager.proxies.DataSource;
+
+/**
+ * Page local cache with the first associated object (ordered by createdDate) for all Reference columns in a template.
+ *
+ * Instead of querying the reference for each exported object and each column, the associated objects for an entire page
+ * of export objects are retrieved in a couple of queries. This is only possible when the associated object owns the
+ * reference, otherwise it is impossible to see to which export object an associated object belongs. In that case the
+ * column is not prefetched and the line handler falls back to querying the reference per object.
+ */
+public class ReferencePrefetch {
+
+	private static ILogNode logger = Core.getLogger("FlatFileExport");
+
+	/** The number of export objects that is combined in a single constraint */
+	private static final int IDS_PER_QUERY = 250;
+	private static final int LIMIT = 1000;
+
+	private IContext context;
+	private Set<Long> exportObjectIds;
+	private Map<String, Map<Long, IMendixObject>> firstObjects = new HashMap<String, Map<Long, IMendixObject>>();
+
+	public ReferencePrefetch( IContext context, TemplateConfiguration config, List<IMendixObject> exportObjects ) throws CoreException {
+		this.context = context;
+		this.exportObjectIds = new HashSet<Long>(exportObjects.size());
+		for( IMendixObject exportObject : exportObjects )
+			this.exportObjectIds.add(exportObject.getId().toLong());
+
+		for( ColumnConfig column : config.getColumnPlan() ) {
+			if ( column.getValueSource() != DataSource.Reference || column.getReferenceName() == null || column.getReferenceObjectType() == null )
+				continue;
+
+			String key = getKey(column);
+			if ( !this.firstObjects.containsKey(key) && isOwnedByAssociatedObject(column.getReferenceName(), column.getReferenceObjectType()) )
+				this.firstObjects.put(key, retrieveFirstObjects(column.getReferenceName(), column.getReferenceObjectType(), exportObjects));
+		}
+	}
+
+	/**
+	 * @return true when the associated object for this column and export object can be served from this prefetch
+	 */
+	public boolean covers( ColumnConfig column, IMendixObject exportObject ) {
+		return this.exportObjectIds.contains(exportObject.getId().toLong()) && this.firstObjects.containsKey(getKey(column));
+	}
+
+	/**
+	 * @return the first associated object, or null when the export object has no associated objects
+	 */
+	public IMendixObject getFirstObject( ColumnConfig column, IMendixObject exportObject ) {
+		return this.firstObjects.get(getKey(column)).get(exportObject.getId().toLong());
+	}
+
+	private static String getKey( ColumnConfig column ) {
+		return column.getReferenceName() + "/" + column.getReferenceObjectType();
+	}
+
+	/**
+	 * @return true when the associated object type stores the reference, so the export object can be read from the associated object
+	 */
+	static boolean isOwnedByAssociatedObject( String referenceName, String objectType ) {
+		IMetaAssociation association = Core.getMetaAssociation(referenceName);
+		if ( association == null )
+			return false;
+
+		String parentObjectName = association.getParent().getName(), childObjectName = association.getChild().getName();
+		// The direction of a self reference can't be determined from the associated object
+		if ( parentObjectName.equals(childObjectName) )
+			return false;
+
+		return association.getOwner() == AssociationOwner.BOTH || parentObjectName.equals(objectType) || Core.isSubClassOf(parentObjectName, objectType);
+	}
+
+	private Map<Long, IMendixObject> retrieveFirstObjects( String referenceName, String objectType, List<IMendixObject> exportObjects ) throws CoreException {
+		Map<Long, IMendixObject> result = new HashMap<Long, IMendixObject>(exportObjects.size());
+
+		HashMap<String, String> sortMap = new HashMap<String, String>();
+		sortMap.put("createdDate", "ASC");
+
+		for( int i = 0; i < exportObjects.size(); i += IDS_PER_QUERY ) {
+			List<IMendixObject> chunk = exportObjects.subList(i, Math.min(i + IDS_PER_QUERY, exportObjects.size()));
+
+			// Only the ids in this chunk, the sort order only applies to the objects matching this chunk's constraint
+			Set<Long> chunkIds = new HashSet<Long>(chunk.size());
+			StringBuilder constraint = new StringBuilder();
+			for( IMendixObject exportObject : chunk ) {
+				if ( constraint.length() > 0 )
+					constraint.append(" or ");
+				constraint.append(referenceName).append("='").append(exportObject.getId().toLong()).append("'");
+				chunkIds.add(exportObject.getId().toLong());
+			}
+
+			int offset = 0, remaining = chunkIds.size();
+			List<IMendixObject> associatedObjects;
+			do {
+				associatedObjects = Core.retrieveXPathQuery(this.context, "//" + objectType + "[" + constraint + "]", LIMIT, offset, sortMap);
+				for( IMendixObject associatedObject : associatedObjects ) {
+					for( Long exportObjectId : getReferencedIds(this.context, associatedObject, referenceName) ) {
+						// Only the first object (the oldest) is relevant
+						if ( chunkIds.contains(exportObjectId) && !result.containsKey(exportObjectId) ) {
+							result.put(exportObjectId, associatedObject);
+							remaining--;
+						}
+					}
+				}
+				offset += LIMIT;
+			} while( associatedObjects.size() == LIMIT && remaining > 0 );
+		}
+
+		if ( logger.isTraceEnabled() )
+			logger.trace("Prefetched association: " + referenceName + " for " + exportObjects.size() + " objects, found " + result.size() + " associated objects");
+
+		return result;
+	}
+
+	/**
+	 * @return the ids of all objects the associated object refers to over the reference
+	 */
+	@SuppressWarnings("unchecked")
+	static List<Long> getReferencedIds( IContext context, IMendixObject associatedObject, String referenceName ) {
+		List<Long> ids = new ArrayList<Long>();
+
+		Object value = associatedObject.getValue(context, referenceName);
+		if ( value instanceof IMendixIdentifier )
+			ids.add(((IMendixIdentifier) value).toLong());
+		else if ( value instanceof List ) {
+			for( IMendixIdentifier id : (List<IMendixIdentifier>) value )
+				ids.add(id.toLong());
+		}
+
+		return ids;
+	}
+}
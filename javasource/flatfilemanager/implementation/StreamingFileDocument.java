@@ -0,0 +1,127 @@
+package flatfilemanager.implementation;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+import com.mendix.core.Core;
+import com.mendix.core.CoreException;
+import com.mendix.systemwideinterfaces.core.IContext;
+import com.mendix.systemwideinterfaces.core.IMendixObject;
+
+/**
+ * Stores content in a file document while it is being generated.
+ *
+ * The content is written on a separate thread into a pipe with a fixed size, the calling thread stores everything it
+ * reads from the pipe. The memory usage is limited to the size of the pipe, no matter how large the content is.
+ * The context that stores the content is used by the calling thread at the same time, so the content must be written
+ * without it.
+ */
+public abstract class StreamingFileDocument {
+
+	/**
+	 * Write the complete content to the output stream, the stream must be closed when finished. This runs on a separate
+	 * thread, it must not use the context the content is stored with.
+	 */
+	protected abstract void write( OutputStream out ) throws Exception;
+
+	public void store( IContext context, IMendixObject fileDocument, String fileName, int bufferSize ) throws CoreException {
+		Producer producer;
+		PipedInputStream pipe = new PipedInputStream(bufferSize);
+		try {
+			producer = new Producer(new PipedOutputStream(pipe));
+		}
+		catch( IOException e ) {
+			throw new CoreException(e);
+		}
+
+		producer.start();
+		try {
+			Core.storeFileDocumentContent(context, fileDocument, fileName, new ProducerInputStream(pipe, producer));
+		}
+		finally {
+			// Unblock the producer when the content couldn't be stored completely
+			IOUtils.closeQuietly(pipe);
+			try {
+				producer.join();
+			}
+			catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		if ( producer.error != null )
+			throw new CoreException("Unable to generate the file, error: " + producer.error.getMessage(), producer.error);
+	}
+
+	/**
+	 * Writes the content into the pipe, so it can be stored while it is being generated
+	 */
+	private class Producer extends Thread {
+		private OutputStream out;
+		private volatile Exception error;
+
+		private Producer( OutputStream out ) {
+			super("FlatFile-Stream");
+			this.out = out;
+			this.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				write(this.out);
+			}
+			catch( Exception e ) {
+				this.error = e;
+			}
+			finally {
+				IOUtils.closeQuietly(this.out);
+			}
+		}
+	}
+
+	/**
+	 * Reads the generated content from the pipe, and fails instead of ending the stream when the producer failed.
+	 * That way a partial file is never stored as the file content.
+	 */
+	private static class ProducerInputStream extends FilterInputStream {
+		private Producer producer;
+
+		private ProducerInputStream( InputStream in, Producer producer ) {
+			super(in);
+			this.producer = producer;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return checkEnd(super.read());
+		}
+
+		@Override
+		public int read( byte[] b, int off, int len ) throws IOException {
+			return checkEnd(super.read(b, off, len));
+		}
+
+		private int checkEnd( int result ) throws IOException {
+			if ( result == -1 ) {
+				try {
+					this.producer.join();
+				}
+				catch( InterruptedException e ) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for the file", e);
+				}
+				if ( this.producer.error != null )
+					throw new IOException("Unable to generate the file, error: " + this.producer.error.getMessage(), this.producer.error);
+			}
+
+			return result;
+		}
+	}
+}
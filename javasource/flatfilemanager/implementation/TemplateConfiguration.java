@@ -1,5 +1,8 @@
 package flatfilemanager.implementation;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -9,20 +12,24 @@ import com.mendix.core.CoreException;
 import com.mendix.systemwideinterfaces.core.IContext;
 import com.mendix.systemwideinterfaces.core.IMendixIdentifier;
 import com.mendix.systemwideinterfaces.core.IMendixObject;
+import com.mendix.systemwideinterfaces.core.meta.IMetaPrimitive.PrimitiveType;
 
 import flatfilemanager.proxies.DataSource;
 import flatfilemanager.proxies.Field;
+import flatfilemanager.proxies.FieldDataType;
 import flatfilemanager.proxies.FormatType;
 import flatfilemanager.proxies.LineEndChar;
 import flatfilemanager.proxies.SuffixOrPrefix;
 import flatfilemanager.proxies.Template;
+import mxmodelreflection.proxies.MxObjectMember;
+import mxmodelreflection.proxies.MxObjectReference;
 import mxmodelreflection.proxies.MxObjectType;
+import replication.ValueParser.ParseException;
 import replication.implementation.MFValueParser;
 import replication.interfaces.IValueParser;
 
 public class TemplateConfiguration {
 	
-	private IContext context;
 	private Integer totalLength;
 	// private Object number
 	private String templateName;
@@ -35,17 +42,24 @@ public class TemplateConfiguration {
 	private boolean headerOnFirstLine;
 	private String objectType;
 	private Integer templateIdField = null;
+	private boolean usesMicroflows = false;
+	private boolean usesAggregates = false;
 
 	private Map<Integer, ColumnConfig> columns;
+	/**
+	 * All columns ordered by their column number, with every member name and type already resolved.
+	 * This is the plan the line handlers use while exporting, so no Field or MxObjectMember has to be retrieved per value.
+	 */
+	private ColumnConfig[] columnPlan;
 
 	public class ColumnConfig {
 
-		private IValueParser microflowValueParser;
+		private MFValueParser microflowValueParser;
 		private String mask = null;
 		private String staticValue = null;
 
-		private IMendixObject columnObj;
 		private Integer nrOfDecimals;
+		private Integer flatFilePosition;
 		private int length;
 		
 		private DataSource datasource;
@@ -53,25 +67,77 @@ public class TemplateConfiguration {
 		private String appendCharacter;
 		private SuffixOrPrefix suffixOrPrefix;
 		private String description;
+
+		private String attributeName;
+		private PrimitiveType renderType;
+		private String referenceName;
+		private String referenceObjectType;
+		private char[] padCharacters;
+		private ExportAggregates.Aggregate aggregate;
 		
 
-		protected ColumnConfig( IMendixObject columnObj ) {
-			this.columnObj = columnObj;
-			
-			this.datasource = DataSource.valueOf((String) columnObj.getValue(TemplateConfiguration.this.context, Field.MemberNames.DataSource.toString()));
-			this.staticValue = columnObj.getValue(TemplateConfiguration.this.context, Field.MemberNames.StaticValue.toString());
-			this.length = columnObj.getValue(TemplateConfiguration.this.context, Field.MemberNames.Length.toString());
-			this.colNumber = columnObj.getValue(TemplateConfiguration.this.context, Field.MemberNames.ColNumber.toString());
-			this.description = columnObj.getValue(TemplateConfiguration.this.context, Field.MemberNames.Description.toString());
+		/**
+		 * Only the values of the field are kept, the configuration can be shared by multiple actions so it must not keep
+		 * any object of the context it has been created with
+		 */
+		protected ColumnConfig( IContext context, IMendixObject columnObj ) throws CoreException {
+			this.datasource = DataSource.valueOf((String) columnObj.getValue(context, Field.MemberNames.DataSource.toString()));
+			this.staticValue = columnObj.getValue(context, Field.MemberNames.StaticValue.toString());
+			this.length = columnObj.getValue(context, Field.MemberNames.Length.toString());
+			this.flatFilePosition = columnObj.getValue(context, Field.MemberNames.FlatFilePosition.toString());
+			this.colNumber = columnObj.getValue(context, Field.MemberNames.ColNumber.toString());
+			this.description = columnObj.getValue(context, Field.MemberNames.Description.toString());
 			
-			this.appendCharacter = columnObj.getValue(TemplateConfiguration.this.context, Field.MemberNames.AppendCharacter.toString());
+			this.appendCharacter = columnObj.getValue(context, Field.MemberNames.AppendCharacter.toString());
+			this.padCharacters = (this.getAppendCharacter().length() > 0 ? this.getAppendCharacter() : " ").toCharArray();
 			
 
-			String sufOrPre = columnObj.getValue(TemplateConfiguration.this.context, Field.MemberNames.Append.toString());
+			String sufOrPre = columnObj.getValue(context, Field.MemberNames.Append.toString());
 			if( sufOrPre != null )
 				this.suffixOrPrefix = SuffixOrPrefix.valueOf(sufOrPre);
 			else 
 				this.suffixOrPrefix = SuffixOrPrefix.Suffix;
+
+			/*
+			 * Resolve all the model reflection information only once, the line handlers can use the names directly
+			 */
+			IMendixIdentifier memberId = columnObj.getValue(context, Field.MemberNames.Field_MxObjectMember.toString());
+			if ( memberId != null ) {
+				IMendixObject member = Core.retrieveId(context, memberId);
+				this.attributeName = member.getValue(context, MxObjectMember.MemberNames.AttributeName.toString());
+			}
+
+			String dataType = columnObj.getValue(context, Field.MemberNames.FormatAsDataType.toString());
+			if ( dataType != null )
+				this.renderType = determineRenderType(FieldDataType.valueOf(dataType));
+
+			if ( this.datasource == DataSource.StaticValue )
+				this.aggregate = ExportAggregates.parse(this.staticValue);
+
+			if ( this.datasource == DataSource.Reference ) {
+				IMendixIdentifier referenceId = columnObj.getValue(context, Field.MemberNames.Field_MxObjectReference.toString());
+				if ( referenceId != null )
+					this.referenceName = Core.retrieveId(context, referenceId).getValue(context, MxObjectReference.MemberNames.CompleteName.toString());
+
+				IMendixIdentifier objectTypeId = columnObj.getValue(context, Field.MemberNames.Field_MxObjectType_Reference.toString());
+				if ( objectTypeId != null )
+					this.referenceObjectType = Core.retrieveId(context, objectTypeId).getValue(context, MxObjectType.MemberNames.CompleteName.toString());
+			}
+		}
+
+		private PrimitiveType determineRenderType( FieldDataType dataType ) {
+			switch (dataType) {
+			case DecimalType:
+				return PrimitiveType.Decimal;
+			case IntegerType:
+				return PrimitiveType.Long;
+			case DateType:
+				return PrimitiveType.DateTime;
+			case StringType:
+				return PrimitiveType.String;
+			}
+
+			return null;
 		}
 
 		protected void addMask( String mask ) {
@@ -85,20 +151,24 @@ public class TemplateConfiguration {
 			this.nrOfDecimals = nrOfDecimals;
 		}
 
-		public void addMicroflow( IMendixObject microflowObject ) throws CoreException {
+		public void addMicroflow( IContext context, IMendixObject microflowObject ) throws CoreException {
 			if( microflowObject != null ) {
-				this.microflowValueParser = new MFValueParser(TemplateConfiguration.this.context, microflowObject);
+				// The configuration can be shared by multiple actions, so the parser doesn't keep this context and the microflow is always executed with the context passed to parseWithMicroflow
+				this.microflowValueParser = MFValueParser.createShared(context, microflowObject);
 			}
 		}
 
-		public IMendixObject getColumnObj() {
-			return this.columnObj;
-		}
-
 		protected IValueParser getMicroflow() {
 			return this.microflowValueParser;
 		}
 
+		/**
+		 * Parse the value with the microflow of this column, executed in the context of the action that is running
+		 */
+		protected Object parseWithMicroflow( IContext context, Object value ) throws ParseException {
+			return this.microflowValueParser.parseValue(context, value);
+		}
+
 		public String getMask() {
 			return this.mask;
 		}
@@ -119,6 +189,13 @@ public class TemplateConfiguration {
 			return this.length;
 		}
 
+		/**
+		 * @return the position of the first character of the field in a fixed length line
+		 */
+		public Integer getFlatFilePosition() {
+			return this.flatFilePosition;
+		}
+
 		public int getColNumber() {
 			return this.colNumber;
 		}
@@ -137,11 +214,46 @@ public class TemplateConfiguration {
 		public String getDescription() {
 			return this.description;
 		}
+
+		/**
+		 * @return the name of the attribute (on the export object, or on the referenced object) or null when no member is selected
+		 */
+		public String getAttributeName() {
+			return this.attributeName;
+		}
+
+		public PrimitiveType getRenderType() {
+			return this.renderType;
+		}
+
+		public String getReferenceName() {
+			return this.referenceName;
+		}
+
+		public String getReferenceObjectType() {
+			return this.referenceObjectType;
+		}
+
+		public boolean padAsPrefix() {
+			return this.suffixOrPrefix == SuffixOrPrefix.Prefix;
+		}
+
+		/**
+		 * @return the aggregate in the static value of the column, or null when the column doesn't contain an aggregate
+		 */
+		public ExportAggregates.Aggregate getAggregate() {
+			return this.aggregate;
+		}
+
+		/**
+		 * @return the characters that are repeated to pad the value, an empty append character pads with spaces
+		 */
+		public char[] getPadCharacters() {
+			return this.padCharacters;
+		}
 	}
 
 	public TemplateConfiguration(IContext context, IMendixObject template ) throws CoreException {
-		this.context = context;
-
 		this.totalLength = (Integer) template.getValue(context, Template.MemberNames.TotalLength.toString());
 		// this.number = template.getValue(context, Template.MemberNames.Nr.toString());
 		this.templateName = template.getValue(context, Template.MemberNames.Title.toString());
@@ -171,7 +283,7 @@ public class TemplateConfiguration {
 		for( IMendixObject column : result ) {
 			int colNr = column.getValue(context, Field.MemberNames.ColNumber.toString());
 
-			ColumnConfig cc = new ColumnConfig(column);
+			ColumnConfig cc = new ColumnConfig(context, column);
 
 			cc.addMask(column.getValue(context, Field.MemberNames.ValueMask.toString()));
 			cc.setNrOfDecimals(column.getValue(context, Field.MemberNames.NrOfDecimals.toString()));
@@ -179,11 +291,24 @@ public class TemplateConfiguration {
 			IMendixIdentifier mfId = column.getValue(context, Field.MemberNames.Field_Microflows.toString());
 			if ( mfId != null ) {
 				IMendixObject mfObj = Core.retrieveId(context, mfId);
-				cc.addMicroflow( mfObj );
+				cc.addMicroflow( context, mfObj );
+				this.usesMicroflows = true;
 			}
 
 			this.columns.put(colNr, cc);
+			if ( cc.getAggregate() != null )
+				this.usesAggregates = true;
 		}
+
+		List<ColumnConfig> plan = new ArrayList<ColumnConfig>(this.columns.values());
+		Collections.sort(plan, new Comparator<ColumnConfig>() {
+
+			@Override
+			public int compare( ColumnConfig o1, ColumnConfig o2 ) {
+				return Integer.compare(o1.getColNumber(), o2.getColNumber());
+			}
+		});
+		this.columnPlan = plan.toArray(new ColumnConfig[plan.size()]);
 	}
 
 	public String getObjectType() {
@@ -241,10 +366,31 @@ public class TemplateConfiguration {
 		return this.headerOnFirstLine;
 	}
 
+	/**
+	 * @return true when any of the columns is parsed by a microflow
+	 */
+	public boolean usesMicroflows() {
+		return this.usesMicroflows;
+	}
+
+	/**
+	 * @return true when any of the columns contains an aggregate over the lines of the export
+	 */
+	public boolean usesAggregates() {
+		return this.usesAggregates;
+	}
+
 	public Map<Integer, ColumnConfig> getColumns() {
 		return this.columns;
 	}
 
+	/**
+	 * @return all columns in the order of their column number, this array is shared so it must not be modified
+	 */
+	public ColumnConfig[] getColumnPlan() {
+		return this.columnPlan;
+	}
+
 //	public String getMicroflowParser( int colNr ) {
 //		if ( this.columns.containsKey(colNr) )
 //			return this.columns.get(colNr).getMicroflow();
@@ -0,0 +1,148 @@
+package flatfilemanager.implementation;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.mendix.core.Core;
+import com.mendix.core.CoreException;
+import com.mendix.logging.ILogNode;
+import com.mendix.systemwideinterfaces.connectionbus.data.IDataRow;
+import com.mendix.systemwideinterfaces.connectionbus.data.IDataTable;
+import com.mendix.systemwideinterfaces.core.IContext;
+import com.mendix.systemwideinterfaces.core.IMendixObject;
+import com.mendix.systemwideinterfaces.core.meta.IMetaObject;
+
+import flatfilemanager.proxies.Field;
+import flatfilemanager.proxies.Template;
+import mxmodelreflection.proxies.Microflows;
+import mxmodelreflection.proxies.MxObjectMember;
+
+/**
+ * Process wide cache of the compiled template configurations, shared by all imports and exports.
+ *
+ * Before a cached configuration is used it is compared with the current state of the template: the changed date of the
+ * template and the number of fields and the last changed date of its fields. That costs a single aggregate query,
+ * instead of retrieving all fields, members and microflows again. Whenever a Template or Field is committed or removed
+ * the configuration is compiled again the next time it is used.
+ *
+ * This relies on the changedDate system member of Template and Field. That is checked before anything is cached: when
+ * one of them doesn't store its changed date the configurations are never cached, and compiled for every action.
+ * The changed dates of the selected members and microflows are compared as well when their entities store them.
+ * Otherwise a change of the model reflection data is not detected, call {@link #invalidateAll()} after the model
+ * reflection has been synchronized.
+ *
+ * A cached configuration doesn't keep any object of the action that compiled it, the microflows of the columns are
+ * always executed in the context of the action that uses the configuration.
+ */
+public class TemplateConfigurationCache {
+
+	private static ILogNode logger = Core.getLogger("FlatFileExport");
+	private static final String CHANGED_DATE = "changedDate";
+
+	private static ConcurrentHashMap<Long, CachedConfiguration> cache = new ConcurrentHashMap<Long, CachedConfiguration>();
+	/** Null until the entities have been checked for their changed date */
+	private static volatile Boolean versioned;
+
+	private static class CachedConfiguration {
+		private String version;
+		private TemplateConfiguration config;
+
+		private CachedConfiguration( String version, TemplateConfiguration config ) {
+			this.version = version;
+			this.config = config;
+		}
+	}
+
+	/**
+	 * @return the compiled configuration for the template, compiled again when the template or any of its fields changed
+	 */
+	public static TemplateConfiguration getTemplateConfig( IContext context, IMendixObject template ) throws CoreException {
+		if ( !isVersioned() )
+			return new TemplateConfiguration(context, template);
+
+		Long id = template.getId().toLong();
+		String version = getVersion(context, template);
+
+		CachedConfiguration cached = cache.get(id);
+		if ( cached != null && cached.version.equals(version) )
+			return cached.config;
+
+		if ( logger.isDebugEnabled() )
+			logger.debug("Compiling the configuration for template: " + id + (cached != null ? ", the template has been changed" : ""));
+
+		TemplateConfiguration config = new TemplateConfiguration(context, template);
+		cache.put(id, new CachedConfiguration(version, config));
+
+		return config;
+	}
+
+	/**
+	 * Remove the template from the cache, so it will be compiled again the next time it is used
+	 */
+	public static void invalidate( Long templateId ) {
+		cache.remove(templateId);
+	}
+
+	public static void invalidateAll() {
+		cache.clear();
+	}
+
+	/**
+	 * @return true when Template and Field store their changed date, otherwise a change can't be detected
+	 */
+	private static boolean isVersioned() {
+		if ( versioned == null ) {
+			versioned = hasChangedDate(Template.getType()) && hasChangedDate(Field.getType());
+			if ( !versioned )
+				logger.warn("The template configurations are not cached, " + Template.getType() + " and " + Field.getType() + " have to store their changed date");
+		}
+
+		return versioned;
+	}
+
+	private static boolean hasChangedDate( String objectType ) {
+		IMetaObject metaObject = Core.getMetaObject(objectType);
+		return metaObject != null && metaObject.hasChangedDateAttribute();
+	}
+
+	private static String getVersion( IContext context, IMendixObject template ) throws CoreException {
+		String fieldEntity = quote(Field.getType()), templateEntity = quote(Template.getType());
+		boolean memberVersioned = hasChangedDate(MxObjectMember.getType()), microflowVersioned = hasChangedDate(Microflows.getType());
+
+		StringBuilder query = new StringBuilder();
+		query.append("SELECT COUNT(field/ID) AS NrOfFields, MAX(field/").append(CHANGED_DATE).append(") AS LastChange");
+		if ( memberVersioned )
+			query.append(", MAX(member/").append(CHANGED_DATE).append(") AS LastMemberChange");
+		if ( microflowVersioned )
+			query.append(", MAX(microflow/").append(CHANGED_DATE).append(") AS LastMicroflowChange");
+		query.append(" FROM ").append(fieldEntity).append(" AS field");
+		if ( memberVersioned )
+			query.append(" LEFT JOIN field/").append(quote(Field.MemberNames.Field_MxObjectMember.toString())).append("/").append(quote(MxObjectMember.getType())).append(" AS member");
+		if ( microflowVersioned )
+			query.append(" LEFT JOIN field/").append(quote(Field.MemberNames.Field_Microflows.toString())).append("/").append(quote(Microflows.getType())).append(" AS microflow");
+		query.append(" WHERE field/").append(quote(Field.MemberNames.Field_Template.toString())).append("/").append(templateEntity).append("/ID=").append(template.getId().toLong());
+
+		IDataTable table = Core.retrieveOQLDataTable(context, query.toString());
+
+		StringBuilder version = new StringBuilder();
+		version.append(getTime((Date) template.getValue(context, CHANGED_DATE)));
+		if ( table.getRowCount() > 0 ) {
+			IDataRow row = table.getRows().get(0);
+			version.append("/").append((Object) row.getValue(context, 0));
+			int columnCount = 2 + (memberVersioned ? 1 : 0) + (microflowVersioned ? 1 : 0);
+			for( int i = 1; i < columnCount; i++ )
+				version.append("/").append(getTime((Date) row.getValue(context, i)));
+		}
+
+		return version.toString();
+	}
+
+	private static String getTime( Date date ) {
+		return (date != null ? String.valueOf(date.getTime()) : "");
+	}
+
+	private static String quote( String completeName ) {
+		String[] nameArr = completeName.split("\\.");
+		return "\"" + nameArr[0] + "\".\"" + nameArr[1] + "\"";
+	}
+}
@@ -12,6 +12,7 @@ import java.io.StringWriter;
 
 import org.sadun.text.ffp.FlatFileParser.Condition;
 import org.sadun.text.ffp.FlatFileParser.LineReader;
+import org.sadun.text.ffp.FlatFileParser.LineWindowCondition;
 
 /**
  * A {@link org.sadun.text.ffp.FlatFileParser.Condition} that holds if and only if all the
@@ -19,7 +20,7 @@ import org.sadun.text.ffp.FlatFileParser.LineReader;
  * 
  * @author Cristiano Sadun
  */
-public class AndCondition implements Condition {
+public class AndCondition implements LineWindowCondition {
 	
 	private Condition[] conditions;
 
@@ -54,9 +55,27 @@ public class AndCondition implements Condition {
 		LineReader reader)
 		throws IOException {
 		for(int i=0;i<conditions.length;i++) {
-			((LinePushbackReader)reader).mark();
+			((BufferedLineReader)reader).mark();
 			boolean holds = conditions[i].holds(logicalLineCount, physicalLineCount, reader);
-			((LinePushbackReader)reader).reset();
+			((BufferedLineReader)reader).reset();
+			if (!holds) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The conditions are evaluated on the window as in {@link #holds(int, int, LineReader)}, each of
+	 * them sees the same peeked lines. Subclasses are evaluated with {@link #holds(int, int, LineReader)}.
+	 */
+	public boolean holds(
+		int logicalLineCount,
+		int physicalLineCount,
+		LineWindow window)
+		throws IOException {
+		if (getClass() != AndCondition.class)
+			return window.holdsOnReader(this, logicalLineCount, physicalLineCount);
+		for(int i=0;i<conditions.length;i++) {
+			boolean holds = window.holds(conditions[i], logicalLineCount, physicalLineCount);
 			if (!holds) return false;
 		}
 		return true;
@@ -0,0 +1,214 @@
+package org.sadun.text.ffp;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * A line reader which reads the characters in large blocks and allows to push back read lines.
+ * <p>
+ * The blocks are scanned for the line separator, a line is only copied when it spans two blocks.
+ * <p>
+ * A {@link #mark()} operation ensures that if {@link #reset()} is invoked, the reader
+ * is rewind to the marked position. The lines read while marking are kept in a buffer, a mark
+ * and a reset only move the index in that buffer. Lines read while not marking are not kept.
+ * <p>
+ * This implementation supports multiple nested mark() operations. It is not thread safe, a
+ * reader is used by a single parse at a time.
+ */
+class BufferedLineReader implements FlatFileParser.LineReader {
+
+	private static final int BLOCK_SIZE = 64 * 1024;
+
+	private Reader reader;
+	private char[] separator;
+
+	private char[] block = new char[BLOCK_SIZE];
+	private int pos = 0;
+	private int limit = 0;
+	/** The start of a line that spans multiple blocks */
+	private StringBuilder partial = new StringBuilder();
+	private boolean atEOF = false;
+
+	/** The lines read while marking, from the first mark on */
+	private String[] lines = new String[16];
+	/** The index of the next line to return, and the nr of lines in the buffer */
+	private int next = 0;
+	private int end = 0;
+
+	/** The positions in the lines buffer of the marks, the last one is the current mark */
+	private int[] marks = new int[8];
+	private int markCount = 0;
+
+	/**
+	 * Create a line reader consuming characters from the given reader
+	 * and using the given line separator sequence.
+	 *
+	 * @param reader the reader providing characters
+	 * @param lineSeparator the line separator sequence
+	 */
+	public BufferedLineReader(Reader reader, String lineSeparator) {
+		this.reader = reader;
+		this.separator = lineSeparator.toCharArray();
+	}
+
+	/**
+	 * Create a line reader consuming characters from the given reader.
+	 *
+	 * @param reader the reader providing characters
+	 */
+	public BufferedLineReader(Reader reader) {
+		this(reader, System.getProperty("line.separator"));
+	}
+
+	/**
+	 * Read one line.
+	 *
+	 * @return the next line of text, or <b>null</b> if no such line exist.
+	 * @exception IOException if an I/O exception occurs while reading the line
+	 */
+	public String readLine() throws IOException {
+		if (next < end)
+			return lines[next++];
+
+		if (markCount == 0) {
+			// Nothing to replay and nothing to keep, the buffer starts over
+			next = end = 0;
+			return readLineFromReader();
+		}
+
+		String line = readLineFromReader();
+		if (line == null) // No more lines, we're at physical EOF
+			return null;
+
+		if (end == lines.length)
+			compact();
+		lines[end++] = line;
+		next = end;
+
+		return line;
+	}
+
+	/**
+	 * Marks the current reading point. A matching {@link #reset()} will re-point the reader to this point.
+	 * <p>
+	 * Multiple marks are allowed - the corresponding {@link #reset()} will unstack each mark in turn.
+	 */
+	public void mark() {
+		if (markCount == marks.length) {
+			int[] newMarks = new int[marks.length * 2];
+			System.arraycopy(marks, 0, newMarks, 0, markCount);
+			marks = newMarks;
+		}
+		marks[markCount++] = next;
+	}
+
+	/**
+	 * Resets the reading point to the last {@link #mark() mark}. If no marks exist, an IllegalStateException
+	 * is thrown.
+	 * <p>
+	 * @exception IllegalStateException if no marks have been previously set
+	 */
+	public void reset() {
+		if (markCount == 0)
+			throw new IllegalStateException("Not marking");
+		next = marks[--markCount];
+	}
+
+	/**
+	 * Return whether or not there are more lines to read.
+	 * @return whether or not there are more lines to read.
+	 */
+	public boolean atEOF() {
+		return next == end && atEOF;
+	}
+
+	/**
+	 * Closes the reader.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	/**
+	 * Make room in the lines buffer, the lines before the first mark are no longer needed
+	 */
+	private void compact() {
+		int first = Math.min(marks[0], next);
+		if (first > 0) {
+			System.arraycopy(lines, first, lines, 0, end - first);
+			Arrays.fill(lines, end - first, end, null);
+			for (int i = 0; i < markCount; i++)
+				marks[i] -= first;
+			next -= first;
+			end -= first;
+		}
+		if (end == lines.length) {
+			String[] newLines = new String[lines.length * 2];
+			System.arraycopy(lines, 0, newLines, 0, end);
+			lines = newLines;
+		}
+	}
+
+	private String readLineFromReader() throws IOException {
+		char last = separator[separator.length - 1];
+		int start = pos;
+		while (true) {
+			if (pos == limit) {
+				if (start < limit)
+					partial.append(block, start, limit - start);
+				if (!fill()) {
+					atEOF = true;
+					if (partial.length() == 0)
+						return null;
+					return takePartial(0);
+				}
+				start = 0;
+			}
+
+			char c = block[pos++];
+			if (c == last && endsWithSeparator(start)) {
+				if (partial.length() == 0)
+					return new String(block, start, pos - start - separator.length);
+
+				partial.append(block, start, pos - start);
+				return takePartial(separator.length);
+			}
+		}
+	}
+
+	/**
+	 * @return true when the chars read so far, from the partial line and the block from start to pos, end with the separator
+	 */
+	private boolean endsWithSeparator(int start) {
+		int inBlock = pos - start;
+		if (inBlock + partial.length() < separator.length)
+			return false;
+
+		for (int i = 2; i <= separator.length; i++) {
+			char c = (i <= inBlock ? block[pos - i] : partial.charAt(partial.length() - (i - inBlock)));
+			if (c != separator[separator.length - i])
+				return false;
+		}
+		return true;
+	}
+
+	private String takePartial(int separatorLength) {
+		String line = partial.substring(0, partial.length() - separatorLength);
+		partial.setLength(0);
+		return line;
+	}
+
+	private boolean fill() throws IOException {
+		int read;
+		do {
+			read = reader.read(block, 0, block.length);
+		} while (read == 0);
+
+		pos = 0;
+		limit = Math.max(read, 0);
+		return read > 0;
+	}
+}
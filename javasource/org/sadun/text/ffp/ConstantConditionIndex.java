@@ -0,0 +1,128 @@
+package org.sadun.text.ffp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.sadun.text.ffp.FlatFileParser.Condition;
+
+/**
+ * A dispatch table for a parser whose conditions all are {@link ConstantFoundInLineCondition}s
+ * looking in the same physical line at the same position, as with record type prefixes.
+ * <p>
+ * Instead of evaluating every condition on every line, the constant is taken from the peeked
+ * line and the matching conditions are looked up directly, once for each distinct length of
+ * the constants.
+ */
+class ConstantConditionIndex {
+
+	private int physicalLine;
+	private int startPosition;
+	// The conditions looking for each constant
+	private Map<String, Condition []> conditionsByConstant = new HashMap<String, Condition []>();
+	private int [] lengths;
+	// The conditions in the order they are evaluated without the index
+	private List<Condition> conditions = new ArrayList<Condition>();
+
+	private ConstantConditionIndex() {
+	}
+
+	/**
+	 * Create the dispatch table for the given conditions.
+	 * 
+	 * @param conditions the declared conditions
+	 * @return the dispatch table, or <b>null</b> if not all the conditions are plain
+	 *         {@link ConstantFoundInLineCondition}s at the same position of the same physical line
+	 */
+	static ConstantConditionIndex create(Collection<?> conditions) {
+		if (conditions.isEmpty())
+			return null;
+
+		ConstantConditionIndex index = new ConstantConditionIndex();
+		TreeSet<Integer> lengths = new TreeSet<Integer>();
+		boolean first = true;
+		for (Iterator<?> i = conditions.iterator(); i.hasNext();) {
+			Object o = i.next();
+			// Subclasses may look for the constant in another way
+			if (o.getClass() != ConstantFoundInLineCondition.class)
+				return null;
+
+			ConstantFoundInLineCondition condition = (ConstantFoundInLineCondition) o;
+			if (first) {
+				index.physicalLine = condition.getPhysicalLine();
+				index.startPosition = condition.getStartPosition();
+				first = false;
+			} else if (condition.getPhysicalLine() != index.physicalLine || condition.getStartPosition() != index.startPosition)
+				return null;
+
+			index.conditions.add(condition);
+			String constant = condition.getConstant();
+			Condition [] found = index.conditionsByConstant.get(constant);
+			Condition [] added = new Condition[found == null ? 1 : found.length + 1];
+			if (found != null)
+				System.arraycopy(found, 0, added, 0, found.length);
+			added[added.length - 1] = condition;
+			index.conditionsByConstant.put(constant, added);
+			lengths.add(Integer.valueOf(constant.length()));
+		}
+
+		index.lengths = new int[lengths.size()];
+		int n = 0;
+		for (Iterator<Integer> i = lengths.iterator(); i.hasNext();)
+			index.lengths[n++] = i.next().intValue();
+		return index;
+	}
+
+	/**
+	 * Find the conditions which hold for the next line, without consuming it.
+	 * 
+	 * @param window the lines at the current reading point
+	 * @return the conditions which hold
+	 */
+	Condition [] find(LineWindow window) throws IOException {
+		String line = window.getLine(physicalLine);
+		if (line == null)
+			return new Condition[0];
+
+		Condition [] single = null;
+		List<Condition> all = null;
+		for (int i = 0; i < lengths.length; i++) {
+			int end = startPosition + lengths[i];
+			if (startPosition < 0 || end > line.length())
+				break;
+
+			Condition [] found = conditionsByConstant.get(line.substring(startPosition, end));
+			if (found == null)
+				continue;
+			if (single == null)
+				single = found;
+			else {
+				// More than one length matches, the line matches multiple conditions
+				if (all == null) {
+					all = new ArrayList<Condition>();
+					for (int j = 0; j < single.length; j++)
+						all.add(single[j]);
+				}
+				for (int j = 0; j < found.length; j++)
+					all.add(found[j]);
+			}
+		}
+
+		if (all != null) {
+			// Keep the order of the conditions, the first one is used when multiple conditions match
+			List<Condition> ordered = new ArrayList<Condition>(conditions);
+			ordered.retainAll(all);
+			return ordered.toArray(new Condition[ordered.size()]);
+		}
+		return (single == null ? new Condition[0] : single);
+	}
+
+	public String toString() {
+		return "constants at position " + startPosition + " in the physical line " + physicalLine;
+	}
+}
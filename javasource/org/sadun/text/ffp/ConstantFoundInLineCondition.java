@@ -11,6 +11,7 @@ import java.util.Iterator;
 
 import org.sadun.text.ffp.FlatFileParser.Condition;
 import org.sadun.text.ffp.FlatFileParser.LineReader;
+import org.sadun.text.ffp.FlatFileParser.LineWindowCondition;
 
 /**
  * A condition that looks for a matching constant into a specific physical
@@ -18,7 +19,7 @@ import org.sadun.text.ffp.FlatFileParser.LineReader;
  * 
  * @author Cristiano Sadun
  */
-public class ConstantFoundInLineCondition implements Condition {
+public class ConstantFoundInLineCondition implements LineWindowCondition {
 
 	private int physicalLine;
 	private String constant;
@@ -160,6 +161,18 @@ public class ConstantFoundInLineCondition implements Condition {
 
 	}
 
+	int getPhysicalLine() {
+		return physicalLine;
+	}
+
+	String getConstant() {
+		return constant;
+	}
+
+	int getStartPosition() {
+		return startPosition;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -188,6 +201,27 @@ public class ConstantFoundInLineCondition implements Condition {
 
 	}
 
+	/**
+	 * Compares the constant with the characters in the peeked line, without extracting them.
+	 * Subclasses are evaluated with {@link #holds(int, int, LineReader)}, since they may read
+	 * the lines in another way.
+	 */
+	public boolean holds(
+		int logicalLineCount,
+		int physicalLineCount,
+		LineWindow window)
+		throws IOException {
+		if (getClass() != ConstantFoundInLineCondition.class)
+			return window.holdsOnReader(this, logicalLineCount, physicalLineCount);
+
+		String line = window.getLine(physicalLine);
+		if (line == null)
+			return false;
+		if (startPosition < 0 || startPosition + constant.length() > line.length())
+			return false;
+		return line.regionMatches(startPosition, constant, 0, constant.length());
+	}
+
 	/**
 	 * Read n physical lines and returns the n-th.
 	 * <p>
@@ -8,8 +8,8 @@ package org.sadun.text.ffp;
 
 import java.io.IOException;
 
-import org.sadun.text.ffp.FlatFileParser.Condition;
 import org.sadun.text.ffp.FlatFileParser.LineReader;
+import org.sadun.text.ffp.FlatFileParser.LineWindowCondition;
 
 /**
  * A condition which holds only if the next line on the file is
@@ -17,7 +17,7 @@ import org.sadun.text.ffp.FlatFileParser.LineReader;
  * 
  * @author Cristiano Sadun
  */
-public class ConstantLineCondition implements Condition {
+public class ConstantLineCondition implements LineWindowCondition {
 
 	private String constant;
 
@@ -48,6 +48,23 @@ public class ConstantLineCondition implements Condition {
 		if (line==null) return false;
 		return line.equals(constant);
 	}
+
+	/**
+	 * Compares the constant with the first peeked line. Subclasses are evaluated with
+	 * {@link #holds(int, int, LineReader)}, since they may read the lines in another way.
+	 */
+	public boolean holds(
+		int logicalLineCount,
+		int physicalLineCount,
+		LineWindow window)
+		throws IOException {
+		if (getClass() != ConstantLineCondition.class)
+			return window.holdsOnReader(this, logicalLineCount, physicalLineCount);
+
+		String line=window.getLine(1);
+		if (line==null) return false;
+		return line.equals(constant);
+	}
 	/**
 	 * Return the constant used by this condition.
 	 * @return the constant used by this condition.
@@ -6,11 +6,12 @@
  */
 package org.sadun.text.ffp;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 
-import org.sadun.text.ffp.FlatFileParser.Condition;
 import org.sadun.text.ffp.FlatFileParser.LineReader;
+import org.sadun.text.ffp.FlatFileParser.LineWindowCondition;
 
 /**
  * A condition which compares the numer of physical/logical lines read so far with a given
@@ -18,7 +19,7 @@ import org.sadun.text.ffp.FlatFileParser.LineReader;
  * 
  * @author Cristiano Sadun
  */
-public class CountCondition implements Condition {
+public class CountCondition implements LineWindowCondition {
 	
 	/**
 	 * Constant to indicate that comparisons will occur with
@@ -121,6 +122,24 @@ public class CountCondition implements Condition {
 		int logicalLineCount,
 		int physicalLineCount,
 		LineReader reader) {
+		return relationHolds(logicalLineCount, physicalLineCount);
+	}
+
+	/**
+	 * The condition holds as for {@link #holds(int, int, LineReader)}, no lines are needed.
+	 * Subclasses are evaluated with {@link #holds(int, int, LineReader)}.
+	 */
+	public boolean holds(
+		int logicalLineCount,
+		int physicalLineCount,
+		LineWindow window)
+		throws IOException {
+		if (getClass() != CountCondition.class)
+			return window.holdsOnReader(this, logicalLineCount, physicalLineCount);
+		return relationHolds(logicalLineCount, physicalLineCount);
+	}
+
+	private boolean relationHolds(int logicalLineCount, int physicalLineCount) {
 			int lc = (lineType==PHYSICAL_LINES) ? physicalLineCount : logicalLineCount;
 			switch (relationType) {
 				case LOWER: return lc < n;
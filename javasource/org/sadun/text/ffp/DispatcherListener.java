@@ -4,7 +4,7 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
-import org.sadun.text.ffp.FlatFileParser.Listener;
+import org.sadun.text.ffp.FlatFileParser.LineViewListener;
 
 /**
  * A dispatcher that allows to have different listeners receiving parsing events from
@@ -22,7 +22,7 @@ import org.sadun.text.ffp.FlatFileParser.Listener;
  * @version 1.0
  * @author Cristiano Sadun
  */
-public class DispatcherListener implements Listener {
+public class DispatcherListener implements LineViewListener {
 
     private static class Association {
         private LineFormat lineFormat;
@@ -100,6 +100,34 @@ public class DispatcherListener implements Listener {
 
     } 
 
+    /**
+     * Receive a parsing event and invoke the associated listener, if any. The
+     * values are only extracted when the associated listener isn't a
+     * {@link LineViewListener}, that listener receives an array of its own.
+     * 
+     * @see org.sadun.text.ffp.FlatFileParser.LineViewListener#lineParsed(org.sadun.text.ffp.LineFormat,
+     *      int, int, org.sadun.text.ffp.LineView)
+     */
+    public final void lineParsed(LineFormat format, int logicalLinecount,
+            int physicalLineCount, LineView line) throws AbortFFPException {
+        for (Iterator i = associatedLineFormats.iterator(); i.hasNext();) {
+            Association a = (Association) i.next();
+            if (format.equals(a.getLineFormat())) {
+                if (a.getListener() instanceof LineViewListener)
+                    ((LineViewListener) a.getListener()).lineParsed(format,
+                            logicalLinecount, physicalLineCount, line);
+                else
+                    a.getListener().lineParsed(format, logicalLinecount,
+                            physicalLineCount, line.copyValues());
+                return;
+            } 
+        } 
+        if (!allowLostEvents)
+            throw new NoAssociatedListenerException(format, logicalLinecount,
+                    physicalLineCount, line.copyValues());
+
+    } 
+
     public void associateListener(LineFormat format,
             FlatFileParser.Listener listener) {
         associatedLineFormats.add(new Association(listener, format));
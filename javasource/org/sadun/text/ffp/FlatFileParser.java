@@ -18,6 +18,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -150,6 +151,29 @@ public class FlatFileParser {
 		
 	}
 	
+	/**
+	 * Conditions implementing this extension of {@link Condition} are evaluated on the
+	 * {@link LineWindow} shared by all conditions, instead of on a reader of their own. The
+	 * lines in the window are peeked from the file only once for all conditions, and are
+	 * not copied.
+	 * <p>
+	 * The parser invokes {@link #holds(int, int, LineWindow)} instead of
+	 * {@link Condition#holds(int, int, LineReader)}.
+	 */
+	public interface LineWindowCondition extends Condition {
+
+		/**
+		 * Return <b>true</b> if the condition holds for the lines in the window.
+		 * 
+		 * @param logicalLineCount the logical lines read so far
+		 * @param physicalLineCount the physical lines read so far
+		 * @param window the physical lines at the current reading point
+		 * @return <b>true</b> if the conditions hold, <b>false</b> otherwise.
+		 * @throws IOException if a problem arises reading the lines
+		 */
+		public boolean holds(int logicalLineCount, int physicalLineCount, LineWindow window) throws IOException;
+	}
+
 	/**
 	 * Classes implementing this extension of {@link Listener} will receive notification
 	 * about lines where no condition matches on parsing, if the {@link FlatFileParser#isFailOnNoMatchingConditions() 
@@ -171,6 +195,25 @@ public class FlatFileParser {
 		public void noMatchingCondition(int physicalLineCount, String line);
 	}
 	
+	/**
+	 * Classes implementing this extension of {@link Listener} receive a {@link LineView} on
+	 * the parsed line instead of its values, so only the fields which are used are extracted.
+	 * The parser invokes {@link #lineParsed(LineFormat, int, int, LineView)} instead of
+	 * {@link Listener#lineParsed(LineFormat, int, int, String[])}.
+	 */
+	public interface LineViewListener extends Listener {
+
+		/**
+		 * Invoked when a line is successfully parsed. The corresponding {@link LineFormat}
+		 * is passed as well.
+		 * 
+		 * @param format the {@link LineFormat} object which has executed the parsing  
+		 * @param line the view on the parsed line, the view is reused for the next line
+		 *             once this method returns
+		 */
+		public void lineParsed(LineFormat format, int logicalLinecount, int physicalLineCount, LineView line) throws AbortFFPException;
+	}
+	
 	/**
 	 * Objects implementing this interface allow to access the flat file during parsing, from outside the
 	 * parser. This class is not intended for user implementation; rather, a proper implementation is created 
@@ -189,11 +232,15 @@ public class FlatFileParser {
 		public String readLine() throws IOException;
 	}
 
-	private Condition ALWAYS_HOLDING_CONDITION = new Condition() {
+	private Condition ALWAYS_HOLDING_CONDITION = new LineWindowCondition() {
 		public boolean holds(int logicalLineCount, int physicalLineCount, LineReader reader){
 			return true;
 		}
 		
+		public boolean holds(int logicalLineCount, int physicalLineCount, LineWindow window){
+			return true;
+		}
+		
 		public String toString() {
 			return "always";
 		}
@@ -208,6 +255,9 @@ public class FlatFileParser {
 	private boolean failOnNoMatchingConditions=true;
 	private boolean failOnLineParsingError = defaultFailOnLineParsingError;
 	private Condition [] lastHoldingCondition = new Condition[1];
+	// Dispatch table for conditions which all look for a constant at the same position, built on parsing
+	private ConstantConditionIndex constantIndex;
+	private boolean constantIndexBuilt=false;
 	private Logger logger=Logger.getLogger(LOGGER_CHANNEL_NAME);
 	
 	private DispatcherListener internalDispatcher=new DispatcherListener();
@@ -259,6 +309,7 @@ public class FlatFileParser {
 			throw new IllegalStateException("Programming error: line format already specified by either FlatFileParser(LineFormat) or declare(LineFormat). To handle mixed format files, please use another constructor and/or the declare(Condition, LineFormat) method to associate formats to conditions.");	
 			
 		conditions.put(condition, format);
+		constantIndexBuilt=false;
 		logger.fine("Line format "+format.getName()+" will match "+condition);
 	}
 	
@@ -343,8 +394,12 @@ public class FlatFileParser {
 		int logicalLineCount=1;
 		int physicalLineCount=1;
 		
-		LinePushbackReader reader=new LinePushbackReader(sourceReader, getLineSeparator());
+		BufferedLineReader reader=new BufferedLineReader(sourceReader, getLineSeparator());
+		// The lines the conditions are evaluated on, peeked once for each logical line
+		LineWindow window=new LineWindow(reader);
 		String line="file start";
+		// The view is reused for every line, the values are only extracted for listeners which need them
+		LineView view=new LineView();
 		boolean moreLines=true; 
 		boolean successful=false;
 		
@@ -353,9 +408,8 @@ public class FlatFileParser {
 		try {
 			do {
 				
-				StringBuffer logicalLine=new StringBuffer();
-				
-				Condition[] matchingConditions = findMatchingCondition(logicalLineCount, physicalLineCount, reader);
+				window.clear();
+				Condition[] matchingConditions = findMatchingCondition(logicalLineCount, physicalLineCount, reader, window);
 				
 				if (matchingConditions.length == 0)
 					if (reader.atEOF()) {
@@ -389,19 +443,27 @@ public class FlatFileParser {
 					(LineFormat) conditions.get(matchingConditions[0]);
 				
 				String tmpLine;
-				// Read as many physical lines are required
-				for(int i=0;i<format.getPhysicalLinesCount();i++) {
+				if (format.getPhysicalLinesCount() == 1) {
+					// A single physical line is the logical line, the line peeked by the conditions is read again
 					tmpLine = reader.readLine();
-					if( tmpLine != null )
-						logicalLine.append(tmpLine);
-					logicalLine.append(getLineSeparator());
+					line = (tmpLine != null ? tmpLine : "");
+				} else {
+					StringBuffer logicalLine=new StringBuffer();
+					// Read as many physical lines are required
+					for(int i=0;i<format.getPhysicalLinesCount();i++) {
+						tmpLine = reader.readLine();
+						if( tmpLine != null )
+							logicalLine.append(tmpLine);
+						logicalLine.append(getLineSeparator());
+					}
+					line = logicalLine.toString();
 				}
-				
-				line = logicalLine.toString();
 					
 				try {
-					if( !line.trim().isEmpty() )
-						notifyMatch(format, logicalLineCount, physicalLineCount, format.parse(line, autoTrimMode));
+					if( !isBlank(line) ) {
+						view.set(format, line, format.locate(line, autoTrimMode, view.getBounds()));
+						notifyMatch(format, logicalLineCount, physicalLineCount, view);
+					}
 				} catch (FFPParseException e) {
 					if (failOnLineParsingError) throw e;
 					else logger.warning(e.getMessage());
@@ -463,10 +525,18 @@ public class FlatFileParser {
 		listeners.remove(l);
 	}
 
-	private void notifyMatch(LineFormat format, int logicalLinecount, int physicalLineCount, String[] values) throws AbortFFPException {
+	private void notifyMatch(LineFormat format, int logicalLinecount, int physicalLineCount, LineView view) throws AbortFFPException {
+		// Plain listeners may keep the values, so they share an array of their own for each line
+		String[] values = null;
 		for (Iterator i = listeners.iterator(); i.hasNext();) {
 			Listener listener = (Listener) i.next();
-			listener.lineParsed(format, logicalLinecount, physicalLineCount, values);
+			if (listener instanceof LineViewListener)
+				((LineViewListener)listener).lineParsed(format, logicalLinecount, physicalLineCount, view);
+			else {
+				if (values == null)
+					values = view.copyValues();
+				listener.lineParsed(format, logicalLinecount, physicalLineCount, values);
+			}
 		}
 	}
 
@@ -494,45 +564,58 @@ public class FlatFileParser {
 		}
 	}
 	
+	private static boolean isBlank(String line) {
+		for (int i = 0; i < line.length(); i++)
+			if (line.charAt(i) > ' ')
+				return false;
+		return true;
+	}
+	
 	/**
 	 * @param line
 	 * @return
 	 */
-	private Condition[] findMatchingCondition(int logicalLineCount, int physicalLineCount, LinePushbackReader reader) throws IOException {
+	private Condition[] findMatchingCondition(int logicalLineCount, int physicalLineCount, BufferedLineReader reader, LineWindow window) throws IOException {
 		
 		if (reader.atEOF()) {
 			logger.finer("At EOF, returning no matching conditions");
 			return new Condition[0];
 		}
 		
+		// Index mode - when all conditions look for a constant at the same position, look the constant up
+		if (!constantIndexBuilt) {
+			constantIndex = ConstantConditionIndex.create(conditions.keySet());
+			constantIndexBuilt = true;
+			if (constantIndex != null)
+				logger.fine("All conditions look for "+constantIndex+", using a dispatch table");
+		}
+		if (constantIndex != null)
+			return constantIndex.find(window);
+		
 		// Fast match mode - check if the last condition stil holds, if it does, use it with no further ado
 		if (fastMatchMode && lastHoldingCondition[0] != null) {
 			logger.finer("Fast match mode enabled, checking last holding condition '"+lastHoldingCondition[0]+"'..");
-			reader.mark();
-			if (lastHoldingCondition[0].holds(logicalLineCount, physicalLineCount, reader)) {
-				reader.reset();
+			if (window.holds(lastHoldingCondition[0], logicalLineCount, physicalLineCount)) {
 				logger.finer("Last holding condition holds, ignoring other conditions");
 				return lastHoldingCondition;
 			}
 			logger.finer("Last holding condition does not hold anymore, continuining..");
-			reader.reset();
 		}
 		
 		// Normal mode: run all the conditions and collect the ones which match
 		List l = new ArrayList();
+		boolean finer = logger.isLoggable(Level.FINER);
 		for(Iterator i = conditions.keySet().iterator();i.hasNext();) {
 			Condition condition = (Condition)i.next();
-			logger.finer("Verifying condition '"+condition+"'");			
-			reader.mark();
-			if (condition.holds(logicalLineCount, physicalLineCount, reader)) {
-				logger.finer("Condition '"+condition+"' holds.");
+			if (finer) logger.finer("Verifying condition '"+condition+"'");			
+			if (window.holds(condition, logicalLineCount, physicalLineCount)) {
+				if (finer) logger.finer("Condition '"+condition+"' holds.");
 				l.add(condition);
 			}
-			reader.reset();
 		}
 		Condition [] result = new Condition[l.size()];
 		l.toArray(result);
-		logger.finer("Total of "+result.length+" conditions holding");
+		if (finer) logger.finer("Total of "+result.length+" conditions holding");
 		return result;
 	}
 
@@ -113,6 +113,9 @@ import org.sadun.util.IndentedPrintWriter;
  * {@link #isFailOnTrailingChars()} is initialized on construction depending on the value
  * of the public static field {@link #defaultFailOnTrailingChars}, which is by default set to <b>true</b> (i.e.
  * indicating that an exception should be raised on trailing characters).
+ * <p>
+ * Once all fields are defined, a LineFormat can parse lines on several threads at the same time.
+ * Defining fields is not thread safe, and must not happen while lines are parsed.
  * 
  * @author <a href="mailto:cristianosadunTAKETHISAWAY@hotmail.com">Cristiano
  *         Sadun</a>
@@ -453,6 +456,8 @@ public class LineFormat implements Cloneable {
 	private int currentStart = 0;
 	private int currentPhysicalLine = 1;
 	private boolean failOnTrailingChars;
+	// The compiled fields, created on the first parse
+	private volatile ExtractionPlan extractionPlan;
 	
 	private Logger logger=Logger.getLogger("org.sadun.text.ffp");
 
@@ -502,6 +507,7 @@ public class LineFormat implements Cloneable {
 	 */
 	public void setLineSeparator(String lineSeparator) {
 		this.lineSeparator = lineSeparator;
+		this.extractionPlan = null;
 	}
 
 	/**
@@ -789,6 +795,7 @@ public class LineFormat implements Cloneable {
 	}
 
 	private void addFieldInfo(int physicalLine, FieldInfo info) {
+		extractionPlan = null;
 		if (physicalLine > currentPhysicalLine)
 			currentPhysicalLine = physicalLine;
 		final Integer pl = new Integer(physicalLine);
@@ -1093,6 +1100,7 @@ public class LineFormat implements Cloneable {
 			throw new Error("This is not supposed to happen");
 		}
 		format.fieldsByLine = new HashMap();
+		format.extractionPlan = null;
 		for (Iterator i = fieldsByLine.keySet().iterator(); i.hasNext();) {
 			Object key = i.next();
 			FieldInfo info = (FieldInfo) fieldsByLine.get(key);
@@ -1132,59 +1140,163 @@ public class LineFormat implements Cloneable {
 	 * @exception FFPParseException if a problem occurs when parsing
 	 */
 	public String[] parse(String s, boolean autoTrim) throws FFPParseException {
-		// Locate the line separators and split into physical lines without
-		// separators
-		List l = new ArrayList();
-		int i, currIndex = 0;
+		return parse(s, autoTrim, null);
+	}
+
+	/**
+	 * Parse the given line basing on the format, into the given result array. If {@link #isFailOnTrailingChars()}
+	 * is <b>true</b>, the match must be total. Else, trailing characters are silently ignored.
+	 * <p>
+	 * The format is compiled into an extraction plan the first time it is used, so no fields are looked up
+	 * while parsing. Values are trimmed by offset, before being extracted.
+	 * 
+	 * @param s a string containing the line's physical lines. The last line
+	 *            may or may not have a
+	 *            {@link #getLineSeparator() line separator}.
+	 * @param autoTrim if <b>true</b> strings are trimmed before being returned
+	 * @param result the array to fill, if <b>null</b> or not of the size of the format a new array is used
+	 * @return the array containing the string representation of all the fields
+	 *         in the line.
+	 * @exception FFPParseException if a problem occurs when parsing
+	 */
+	public String[] parse(String s, boolean autoTrim, String[] result) throws FFPParseException {
+		int[] bounds = locate(s, autoTrim, null);
+		if (result == null || result.length != bounds.length / 2)
+			result = new String[bounds.length / 2];
+
+		for (int f = 0; f < result.length; f++)
+			result[f] = s.substring(bounds[f * 2], bounds[f * 2 + 1]);
+
+		return result;
+	}
+
+	/**
+	 * Locate the fields in the given line basing on the format, without extracting them. Fields are validated
+	 * the same way as by {@link #parse(String, boolean, String[])}.
+	 * 
+	 * @param bounds the array to fill, if <b>null</b> or not twice the size of the format a new array is used
+	 * @return the start and end (excluded) of each field in the given line, trimmed when <tt>autoTrim</tt> is <b>true</b>
+	 * @exception FFPParseException if a problem occurs when parsing
+	 */
+	int[] locate(String s, boolean autoTrim, int[] bounds) throws FFPParseException {
+		ExtractionPlan plan = getExtractionPlan();
+		if (bounds == null || bounds.length != plan.fields.length * 2)
+			bounds = new int[plan.fields.length * 2];
+
+		// Locate the line separators, the physical lines are the non empty parts between them
+		int[] lineBounds = new int[plan.lineCount * 2];
+		int lines = 0, currIndex = 0, i;
 		do {
 			i = s.indexOf(lineSeparator, currIndex);
 			// i==-1 at the last line
-			CharSequence line =
-				s.subSequence(currIndex, (i == -1) ? s.length() : i);
-			if (line.length() > 0) {
-				l.add(line);
-				currIndex = i + lineSeparator.length();
+			int lineEnd = (i == -1) ? s.length() : i;
+			if (lineEnd > currIndex) {
+				if (lines < plan.lineCount) {
+					lineBounds[lines * 2] = currIndex;
+					lineBounds[lines * 2 + 1] = lineEnd;
+				}
+				lines++;
 			}
+			currIndex = lineEnd + lineSeparator.length();
 		} while (i != -1);
 
-		if (l.size() != getPhysicalLinesCount())
-			throw new InvalidPhysicalLineCountException(
-				s,
-				l.size(),
-				getPhysicalLinesCount());
-
-		List result = new ArrayList();
-
-		for (i = 0; i < l.size(); i++) {
-			CharSequence line = (CharSequence) l.get(i);
-			// Get the values for ith line
-			SortedSet fields = (SortedSet) fieldsByLine.get(new Integer(i + 1));
-			for (Iterator j = fields.iterator(); j.hasNext();) {
-				FieldInfo info = (FieldInfo) j.next();
-				if (!j.hasNext()) { // last element
-					if (line.length() > info.end) {
-						TrailingCharactersException exc = new TrailingCharactersException(
+		if (lines != plan.lineCount)
+			throw new InvalidPhysicalLineCountException(s, lines, plan.lineCount);
+
+		for (int l = 0; l < lines; l++) {
+			int lineStart = lineBounds[l * 2], lineLength = lineBounds[l * 2 + 1] - lineStart;
+			int last = plan.firstField[l + 1] - 1;
+			for (int f = plan.firstField[l]; f <= last; f++) {
+				int start = plan.starts[f], end = plan.ends[f];
+				if (f == last && lineLength > end) {
+					CharSequence line = s.subSequence(lineStart, lineStart + lineLength);
+					TrailingCharactersException exc = new TrailingCharactersException(
 						line,
 						this,
-						line.subSequence(info.end, line.length())); 
-						if (failOnTrailingChars) throw exc;
-						else logger.warning(exc.getMessage());
-					}
+						line.subSequence(end, lineLength));
+					if (failOnTrailingChars) throw exc;
+					else logger.warning(exc.getMessage());
 				}
-				try {
-					String value = extract(line, info.start, info.end);
-					validateValue(line, info, value);
-					if (autoTrim) result.add(value.trim());
-					else result.add(value);
-				} catch (IllegalRangeException e) {
-					throw new FormatOutOfRangeException(line, this, info);
+				if (end > lineLength)
+					throw new FormatOutOfRangeException(s.subSequence(lineStart, lineStart + lineLength), this, plan.fields[f]);
+
+				start += lineStart;
+				end += lineStart;
+				if (plan.validated[f])
+					validateValue(s.subSequence(lineStart, lineStart + lineLength), plan, f, s.substring(start, end));
+				if (autoTrim) {
+					while (start < end && s.charAt(start) <= ' ')
+						start++;
+					while (end > start && s.charAt(end - 1) <= ' ')
+						end--;
 				}
+				bounds[f * 2] = start;
+				bounds[f * 2 + 1] = end;
 			}
 		}
 
-		String[] resultArray = new String[result.size()];
-		result.toArray(resultArray);
-		return resultArray;
+		return bounds;
+	}
+
+	/**
+	 * The fields of the format in flat arrays, in the order of the physical lines and their start positions.
+	 * The plan is dropped whenever a field is defined.
+	 */
+	private static class ExtractionPlan {
+		private int lineCount;
+		/** The index of the first field of each physical line, plus the total nr of fields */
+		private int[] firstField;
+		private int[] starts;
+		private int[] ends;
+		private FieldInfo[] fields;
+		/** Whether the value of a field has to be validated against its type */
+		private boolean[] validated;
+		/** The formats are not thread safe, every thread parses with copies of its own */
+		private NumberFormat[] numberFormats;
+		private ThreadLocal<NumberFormat[]> threadNumberFormats = new ThreadLocal<NumberFormat[]>() {
+			protected NumberFormat[] initialValue() {
+				NumberFormat[] copies = new NumberFormat[numberFormats.length];
+				for (int f = 0; f < copies.length; f++)
+					if (numberFormats[f] != null)
+						copies[f] = (NumberFormat) numberFormats[f].clone();
+				return copies;
+			}
+		};
+	}
+
+	private ExtractionPlan getExtractionPlan() {
+		if (extractionPlan != null)
+			return extractionPlan;
+
+		List fieldList = new ArrayList();
+		ExtractionPlan plan = new ExtractionPlan();
+		plan.lineCount = getPhysicalLinesCount();
+		plan.firstField = new int[plan.lineCount + 1];
+		for (int l = 1; l <= plan.lineCount; l++) {
+			plan.firstField[l - 1] = fieldList.size();
+			SortedSet fields = (SortedSet) fieldsByLine.get(new Integer(l));
+			if (fields != null)
+				fieldList.addAll(fields);
+		}
+		plan.firstField[plan.lineCount] = fieldList.size();
+
+		int count = fieldList.size();
+		plan.fields = (FieldInfo[]) fieldList.toArray(new FieldInfo[count]);
+		plan.starts = new int[count];
+		plan.ends = new int[count];
+		plan.validated = new boolean[count];
+		plan.numberFormats = new NumberFormat[count];
+		for (int f = 0; f < count; f++) {
+			FieldInfo info = plan.fields[f];
+			plan.starts[f] = info.start;
+			plan.ends[f] = info.end;
+			Type type = info.getType();
+			plan.validated[f] = (type == Type.CONSTANT || type == Type.CONSTANTSET || type == Type.NUMERIC);
+			if (type == Type.NUMERIC && info.getImage() != null)
+				plan.numberFormats[f] = new DecimalFormat(info.getImage());
+		}
+		extractionPlan = plan;
+		return plan;
 	}
 	
 	/**
@@ -1274,8 +1386,9 @@ public class LineFormat implements Cloneable {
 	
 
 	// Typecheck on the given value denotation
-	private void validateValue(CharSequence line, FieldInfo info, String value)
+	private void validateValue(CharSequence line, ExtractionPlan plan, int f, String value)
 		throws ValidationException {
+		FieldInfo info = plan.fields[f];
 		if (info.getType() == Type.CONSTANT) {
 			if (!value.equals(info.getImage()))
 				throw new ValidationException(line, info, value);
@@ -1283,10 +1396,9 @@ public class LineFormat implements Cloneable {
             if (!info.getConstantSet().contains(value))
                 throw new ValidationException(line, info, value);
         } else if (info.getType() == Type.NUMERIC) {
-			if (info.getImage()!=null) {
-				NumberFormat nFormat = new DecimalFormat(info.getImage());
+			if (plan.numberFormats[f]!=null) {
 				try {
-					nFormat.parse(value);
+					plan.threadNumberFormats.get()[f].parse(value);
 				} catch (ParseException e1) {
 					throw new ValidationException(line, info,value);
 				} 
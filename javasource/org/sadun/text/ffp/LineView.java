@@ -0,0 +1,201 @@
+package org.sadun.text.ffp;
+
+import java.math.BigDecimal;
+import java.nio.CharBuffer;
+
+/**
+ * A view on the logical line which has just been parsed, passed to a {@link FlatFileParser.LineViewListener}.
+ * <p>
+ * The view holds the line and the position of each field in it, a field is only extracted or converted when
+ * it is requested. The same view is reused for every line, so it is only valid while the listener is invoked.
+ */
+public class LineView {
+
+	private LineFormat format;
+	private String line;
+	private int[] bounds;
+	private int fieldsCount;
+
+	private String[] values;
+	private boolean valuesExtracted;
+	private char[] decimalChars = new char[32];
+
+	LineView() {
+	}
+
+	void set(LineFormat format, String line, int[] bounds) {
+		this.format = format;
+		this.line = line;
+		this.bounds = bounds;
+		this.fieldsCount = bounds.length / 2;
+		this.valuesExtracted = false;
+	}
+
+	int[] getBounds() {
+		return bounds;
+	}
+
+	/**
+	 * Return the {@link LineFormat} which has matched the line.
+	 * @return the {@link LineFormat} which has matched the line.
+	 */
+	public LineFormat getFormat() {
+		return format;
+	}
+
+	/**
+	 * Return the logical line. When the format has multiple physical lines, each of them
+	 * is followed by the line separator.
+	 * @return the logical line.
+	 */
+	public String getLine() {
+		return line;
+	}
+
+	/**
+	 * Return the number of fields in the line.
+	 * @return the number of fields in the line.
+	 */
+	public int getFieldsCount() {
+		return fieldsCount;
+	}
+
+	/**
+	 * Return the value of the field, without copying it.
+	 * @param field the index of the field, starting from 0
+	 * @return a read only sequence over the characters of the field.
+	 */
+	public CharSequence get(int field) {
+		checkField(field);
+		return CharBuffer.wrap(line, bounds[field * 2], bounds[field * 2 + 1]);
+	}
+
+	/**
+	 * Return the value of the field as a string.
+	 * @param field the index of the field, starting from 0
+	 * @return the value of the field.
+	 */
+	public String getString(int field) {
+		checkField(field);
+		return line.substring(bounds[field * 2], bounds[field * 2 + 1]);
+	}
+
+	/**
+	 * Return whether or not the field contains only blanks.
+	 * @param field the index of the field, starting from 0
+	 * @return <b>true</b> if the field is empty or contains only blanks.
+	 */
+	public boolean isBlank(int field) {
+		checkField(field);
+		for (int i = bounds[field * 2]; i < bounds[field * 2 + 1]; i++)
+			if (line.charAt(i) > ' ')
+				return false;
+		return true;
+	}
+
+	/**
+	 * Return the value of the field as a long, leading and trailing blanks are ignored.
+	 * @param field the index of the field, starting from 0
+	 * @return the value of the field.
+	 * @exception NumberFormatException if the field doesn't contain a (signed) decimal integer which fits in a long
+	 */
+	public long getLong(int field) {
+		checkField(field);
+		int start = bounds[field * 2], end = bounds[field * 2 + 1];
+		while (start < end && line.charAt(start) <= ' ')
+			start++;
+		while (end > start && line.charAt(end - 1) <= ' ')
+			end--;
+
+		int i = start;
+		boolean negative = false;
+		if (i < end && (line.charAt(i) == '-' || line.charAt(i) == '+'))
+			negative = (line.charAt(i++) == '-');
+		if (i == end)
+			throw invalidNumber(field, start, end);
+
+		// Accumulate negatively, so Long.MIN_VALUE can be parsed as well
+		long limit = (negative ? Long.MIN_VALUE : -Long.MAX_VALUE), multmin = limit / 10, result = 0;
+		for (; i < end; i++) {
+			int digit = line.charAt(i) - '0';
+			if (digit < 0 || digit > 9 || result < multmin)
+				throw invalidNumber(field, start, end);
+			result *= 10;
+			if (result < limit + digit)
+				throw invalidNumber(field, start, end);
+			result -= digit;
+		}
+		return (negative ? result : -result);
+	}
+
+	/**
+	 * Return the value of the field as an int, leading and trailing blanks are ignored.
+	 * @param field the index of the field, starting from 0
+	 * @return the value of the field.
+	 * @exception NumberFormatException if the field doesn't contain a (signed) decimal integer which fits in an int
+	 */
+	public int getInt(int field) {
+		long value = getLong(field);
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+			throw invalidNumber(field, bounds[field * 2], bounds[field * 2 + 1]);
+		return (int) value;
+	}
+
+	/**
+	 * Return the value of the field as a decimal, leading and trailing blanks are ignored.
+	 * @param field the index of the field, starting from 0
+	 * @return the value of the field.
+	 * @exception NumberFormatException if the field doesn't contain a valid decimal representation
+	 */
+	public BigDecimal getDecimal(int field) {
+		checkField(field);
+		int start = bounds[field * 2], end = bounds[field * 2 + 1];
+		while (start < end && line.charAt(start) <= ' ')
+			start++;
+		while (end > start && line.charAt(end - 1) <= ' ')
+			end--;
+
+		if (decimalChars.length < end - start)
+			decimalChars = new char[end - start];
+		line.getChars(start, end, decimalChars, 0);
+		try {
+			return new BigDecimal(decimalChars, 0, end - start);
+		} catch (NumberFormatException e) {
+			throw invalidNumber(field, start, end);
+		}
+	}
+
+	/**
+	 * Return the values of all fields. The array is reused for the next line, use
+	 * {@link #copyValues()} to keep the values.
+	 * @return the values of all fields.
+	 */
+	public String[] getValues() {
+		if (!valuesExtracted) {
+			if (values == null || values.length != fieldsCount)
+				values = new String[fieldsCount];
+			for (int f = 0; f < fieldsCount; f++)
+				values[f] = line.substring(bounds[f * 2], bounds[f * 2 + 1]);
+			valuesExtracted = true;
+		}
+		return values;
+	}
+
+	/**
+	 * Return the values of all fields in a new array, as passed to a {@link FlatFileParser.Listener}
+	 * which may keep it.
+	 * @return the values of all fields.
+	 */
+	public String[] copyValues() {
+		return (String[]) getValues().clone();
+	}
+
+	private void checkField(int field) {
+		if (field < 0 || field >= fieldsCount)
+			throw new IllegalArgumentException("This line has only "+fieldsCount+" fields, field number "+field+" is out of range.");
+	}
+
+	private NumberFormatException invalidNumber(int field, int start, int end) {
+		return new NumberFormatException("Field "+field+" of line '"+line+"' is not a valid number: '"+line.substring(start, end)+"'");
+	}
+}
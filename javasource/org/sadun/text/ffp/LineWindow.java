@@ -0,0 +1,91 @@
+package org.sadun.text.ffp;
+
+import java.io.IOException;
+
+import org.sadun.text.ffp.FlatFileParser.Condition;
+import org.sadun.text.ffp.FlatFileParser.LineWindowCondition;
+
+/**
+ * The physical lines at the current reading point of the parser, shared by all the
+ * conditions which are evaluated for the next logical line.
+ * <p>
+ * A line is peeked from the file only once, the first time a condition asks for it, and
+ * is not consumed: the parser reads the same line again, without copying it, once a
+ * {@link LineFormat} has been chosen.
+ */
+public class LineWindow {
+
+	private BufferedLineReader reader;
+	private String[] lines = new String[4];
+	private int count = 0;
+	private boolean atEOF = false;
+
+	LineWindow(BufferedLineReader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Move the window to the current reading point.
+	 */
+	void clear() {
+		for (int i = 0; i < count; i++)
+			lines[i] = null;
+		count = 0;
+		atEOF = false;
+	}
+
+	/**
+	 * Return the given physical line from the current reading point.
+	 *
+	 * @param physicalLine the physical line (starting with 1)
+	 * @return the line, or <b>null</b> if no such line exists
+	 * @exception IOException if an I/O exception occurs while reading the line
+	 */
+	public String getLine(int physicalLine) throws IOException {
+		if (physicalLine <= count)
+			return (physicalLine < 1 ? null : lines[physicalLine - 1]);
+		if (atEOF)
+			return null;
+
+		reader.mark();
+		for (int i = 0; i < physicalLine; i++) {
+			String line = reader.readLine();
+			if (line == null) {
+				atEOF = true;
+				break;
+			}
+			if (i == count) {
+				if (count == lines.length) {
+					String[] newLines = new String[lines.length * 2];
+					System.arraycopy(lines, 0, newLines, 0, count);
+					lines = newLines;
+				}
+				lines[count++] = line;
+			}
+		}
+		reader.reset();
+
+		return (physicalLine <= count ? lines[physicalLine - 1] : null);
+	}
+
+	/**
+	 * Evaluate the condition on the window, or on the reader for conditions which are not
+	 * a {@link LineWindowCondition}. The reading point doesn't change.
+	 */
+	boolean holds(Condition condition, int logicalLineCount, int physicalLineCount) throws IOException {
+		if (condition instanceof LineWindowCondition)
+			return ((LineWindowCondition) condition).holds(logicalLineCount, physicalLineCount, this);
+
+		return holdsOnReader(condition, logicalLineCount, physicalLineCount);
+	}
+
+	/**
+	 * Evaluate the condition on the reader. The reading point doesn't change.
+	 */
+	boolean holdsOnReader(Condition condition, int logicalLineCount, int physicalLineCount) throws IOException {
+		reader.mark();
+		boolean holds = condition.holds(logicalLineCount, physicalLineCount, reader);
+		reader.reset();
+		return holds;
+	}
+}
@@ -10,7 +10,7 @@ import java.io.IOException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.sadun.text.ffp.FlatFileParser.Condition;
+import org.sadun.text.ffp.FlatFileParser.LineWindowCondition;
 
 /**
  * A condition that checks a regular expression in a physical line.
@@ -18,7 +18,7 @@ import org.sadun.text.ffp.FlatFileParser.Condition;
  * @author <a href="mailto:cristianosadunTAKETHISAWAY@hotmail.com">Cristiano Sadun</a>
  * @version 1.0
  */
-public class MatchingRegexpInLineCondition implements Condition {
+public class MatchingRegexpInLineCondition implements LineWindowCondition {
 	
 	private int physicalLine;
 	private Pattern pattern;
@@ -102,6 +102,25 @@ public class MatchingRegexpInLineCondition implements Condition {
 		return matcher.find(startPosition);
 	}
 
+	/**
+	 * Matches the peeked line. Subclasses are evaluated with
+	 * {@link #holds(int, int, FlatFileParser.LineReader)}, since they may read the lines in
+	 * another way.
+	 */
+	public boolean holds(
+		int logicalLineCount,
+		int physicalLineCount,
+		LineWindow window) throws IOException {
+		if (getClass() != MatchingRegexpInLineCondition.class)
+			return window.holdsOnReader(this, logicalLineCount, physicalLineCount);
+
+		String line=window.getLine(physicalLine);
+		if (line==null) return false;
+		if (startPosition >= line.length()) return false;
+		Matcher matcher=pattern.matcher(line);
+		return matcher.find(startPosition);
+	}
+
 	/**
 	 * Read n physical lines and returns the n-th.
 	 * <p>
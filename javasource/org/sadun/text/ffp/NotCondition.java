@@ -10,6 +10,7 @@ import java.io.IOException;
 
 import org.sadun.text.ffp.FlatFileParser.Condition;
 import org.sadun.text.ffp.FlatFileParser.LineReader;
+import org.sadun.text.ffp.FlatFileParser.LineWindowCondition;
 
 /**
  * A {@link org.sadun.text.ffp.FlatFileParser.Condition} that holds if and only if the
@@ -17,7 +18,7 @@ import org.sadun.text.ffp.FlatFileParser.LineReader;
  * 
  * @author Cristiano Sadun
  */
-public class NotCondition implements Condition {
+public class NotCondition implements LineWindowCondition {
 	
 	private Condition condition;
 	
@@ -41,4 +42,18 @@ public class NotCondition implements Condition {
 		throws IOException {
 		return ! condition.holds(logicalLineCount,physicalLineCount, reader);
 	}
+
+	/**
+	 * The condition given at construction is evaluated on the window: if it fails, this condition holds; otherwise not.
+	 * Subclasses are evaluated with {@link #holds(int, int, LineReader)}.
+	 */
+	public boolean holds(
+		int logicalLineCount,
+		int physicalLineCount,
+		LineWindow window)
+		throws IOException {
+		if (getClass() != NotCondition.class)
+			return window.holdsOnReader(this, logicalLineCount, physicalLineCount);
+		return ! window.holds(condition, logicalLineCount, physicalLineCount);
+	}
 }
@@ -2,8 +2,8 @@ package org.sadun.text.ffp;
 
 import java.io.IOException;
 
-import org.sadun.text.ffp.FlatFileParser.Condition;
 import org.sadun.text.ffp.FlatFileParser.LineReader;
+import org.sadun.text.ffp.FlatFileParser.LineWindowCondition;
 
 /**
  * A condition that never holds.
@@ -12,7 +12,7 @@ import org.sadun.text.ffp.FlatFileParser.LineReader;
  *
  * @author Cristiano Sadun
  */
-public class NullCondition implements Condition {
+public class NullCondition implements LineWindowCondition {
     
     public static final NullCondition INSTANCE = new NullCondition();
 
@@ -31,4 +31,14 @@ public class NullCondition implements Condition {
         return false;
     }
 
+    /**
+     * Return <b>false</b>.
+     * 
+     * @return <b>false</b>.
+     */
+    public boolean holds(int logicalLineCount, int physicalLineCount,
+            LineWindow window) {
+        return false;
+    }
+
 }
@@ -12,6 +12,7 @@ import java.io.StringWriter;
 
 import org.sadun.text.ffp.FlatFileParser.Condition;
 import org.sadun.text.ffp.FlatFileParser.LineReader;
+import org.sadun.text.ffp.FlatFileParser.LineWindowCondition;
 
 /**
  * A {@link org.sadun.text.ffp.FlatFileParser.Condition} that holds if and only if one the
@@ -19,7 +20,7 @@ import org.sadun.text.ffp.FlatFileParser.LineReader;
  * 
  * @author Cristiano Sadun
  */
-public class OrCondition implements Condition {
+public class OrCondition implements LineWindowCondition {
 	
 	private Condition[] conditions;
 
@@ -54,10 +55,28 @@ public class OrCondition implements Condition {
 		LineReader reader)
 		throws IOException {
 		for(int i=0;i<conditions.length;i++) {
-			((LinePushbackReader)reader).mark();
+			((BufferedLineReader)reader).mark();
 			boolean holds = conditions[i].holds(logicalLineCount, physicalLineCount, reader);
-			((LinePushbackReader)reader).reset();
-			if (!holds) return true;
+			((BufferedLineReader)reader).reset();
+			if (holds) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The conditions are evaluated on the window as in {@link #holds(int, int, LineReader)}, each of
+	 * them sees the same peeked lines. Subclasses are evaluated with {@link #holds(int, int, LineReader)}.
+	 */
+	public boolean holds(
+		int logicalLineCount,
+		int physicalLineCount,
+		LineWindow window)
+		throws IOException {
+		if (getClass() != OrCondition.class)
+			return window.holdsOnReader(this, logicalLineCount, physicalLineCount);
+		for(int i=0;i<conditions.length;i++) {
+			boolean holds = window.holds(conditions[i], logicalLineCount, physicalLineCount);
+			if (holds) return true;
 		}
 		return false;
 	}
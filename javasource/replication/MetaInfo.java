@@ -1,6 +1,8 @@
 package replication;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -8,6 +10,13 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import replication.ReplicationSettings.ChangeTracking;
 import replication.ReplicationSettings.MendixReplicationException;
@@ -16,11 +25,13 @@ import replication.ValueParser.ParseException;
 import replication.helpers.ObjectStatistics;
 import replication.helpers.ObjectStatistics.Stat;
 import replication.helpers.TimeMeasurement;
+import replication.helpers.WorkerContext;
 
 import com.mendix.core.Core;
 import com.mendix.logging.ILogNode;
 import com.mendix.systemwideinterfaces.connectionbus.data.IDataRow;
 import com.mendix.systemwideinterfaces.connectionbus.data.IDataTable;
+import com.mendix.systemwideinterfaces.core.IContext;
 import com.mendix.systemwideinterfaces.core.IMendixIdentifier;
 import com.mendix.systemwideinterfaces.core.IMendixObject;
 
@@ -63,6 +74,8 @@ public class MetaInfo {
 		private Map<String, List<MetaInfoObject>> meta_ReferenceSets; // Map<AssociationName,
 																		// List<MetaInfoObject>>
 		private boolean isAnyReferenceSet = false;
+		/** The object of the parent MetaInfo this object is associated to over the parent association, if any */
+		private MetaInfoObject parentObject = null;
 
 		private TreeMap<String, Boolean> keys;
 
@@ -249,6 +262,18 @@ public class MetaInfo {
 			return this.meta_ReferenceSets.size() > 0;
 		}
 
+		/**
+		 * Associate this object to the object of the parent MetaInfo over the parent association. The parent object is
+		 * only resolved when this object is processed, the parent MetaInfo processes its objects before that.
+		 */
+		public void setParentObject( MetaInfoObject parentObject ) {
+			this.parentObject = parentObject;
+		}
+
+		public MetaInfoObject getParentObject() {
+			return this.parentObject;
+		}
+
 		/**
 		 * @return true if either the reference or the reference set contains at least one entry
 		 */
@@ -378,6 +403,13 @@ public class MetaInfo {
 	// public Integer newRemoveIndicatorValue = null;
 
 	private ObjectStatistics objectStats;
+	/** The batches that are processed asynchronously, in the order they have been filled */
+	private Deque<Future<Void>> processingBatches = new ArrayDeque<Future<Void>>();
+	private ThreadPoolExecutor processingExecutor;
+	/** The context of the processing thread, the context of the settings is only used by the thread filling the batches */
+	private IContext processingContext;
+	/** The MetaInfo with the objects that the objects of this MetaInfo are associated to */
+	private MetaInfo parentInfo;
 
 	public TimeMeasurement TimeMeasurement;
 	public String replicationName;
@@ -733,23 +765,134 @@ public class MetaInfo {
 		this.TimeMeasurement.endPerformanceTest("Removing unchanged objects by xPath");
 	}
 
+	/**
+	 * The objects of this MetaInfo refer to the objects of the parent MetaInfo, see
+	 * {@link MetaInfoObject#setParentObject(MetaInfoObject)}. Before a batch of this MetaInfo is processed, the
+	 * objects that have been added to the parent MetaInfo so far are processed.
+	 */
+	public void setParentInfo( MetaInfo parentInfo ) {
+		this.parentInfo = parentInfo;
+	}
+
+	/**
+	 * Process the filled batch. With ProcessBatchesAsync the batch is processed on the processing thread of this
+	 * MetaInfo, with its own context for the same user. The objects are then committed in a transaction of their own:
+	 * the processing thread can't retrieve objects that have been created or changed in the transaction of the settings
+	 * context but aren't committed yet, and a rollback of that transaction doesn't undo the processed batches.
+	 */
 	private void startProcessingObjects() throws MendixReplicationException {
+		// The objects of the parent have to exist before the objects of this batch can be associated to them
+		if ( this.parentInfo != null && !this.meta_Objects.isEmpty() ) {
+			if ( !this.parentInfo.meta_Objects.isEmpty() )
+				this.parentInfo.startProcessingObjects();
+			this.parentInfo.waitForProcessing(0);
+		}
+
+		if ( !this.settings.Configuration.ProcessBatchesAsync || !this.settings.getValueParsers().isEmpty() ) {
+			processBatch(this.meta_Objects, this.totalSet_meta_Objects, this.settings.getContext());
+			return;
+		}
+
+		/*
+		 * Hand over the filled batch to the processing thread and continue with new maps. Every batch only refers to its
+		 * own MetaInfoObjects, so the next batch can be filled while this one is processed
+		 */
+		final LinkedHashMap<String, MetaInfoObject> batch = this.meta_Objects;
+		final LinkedHashMap<String, LinkedHashMap<String, MetaInfoObject>> totalSet = this.totalSet_meta_Objects;
+		this.meta_Objects = new LinkedHashMap<String, MetaInfoObject>();
+		this.totalSet_meta_Objects = new LinkedHashMap<String, LinkedHashMap<String, MetaInfoObject>>();
+
+		waitForProcessing(Math.max(0, this.settings.Configuration.AsyncProcessingQueueSize));
+
+		if ( this.processingExecutor == null ) {
+			this.processingExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread( Runnable runnable ) {
+					Thread thread = new Thread(runnable, "MetaInfoProcessor-" + MetaInfo.this.replicationName);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			// Stop the thread when no more batches are coming, for example when the import failed
+			this.processingExecutor.allowCoreThreadTimeOut(true);
+			this.processingContext = WorkerContext.create(this.settings.getContext());
+		}
+		final IContext context = this.processingContext;
+
+		this.processingBatches.add(this.processingExecutor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws MendixReplicationException {
+				processBatch(batch, totalSet, context);
+				return null;
+			}
+		}));
+	}
+
+	private void processBatch( LinkedHashMap<String, MetaInfoObject> batch, LinkedHashMap<String, LinkedHashMap<String, MetaInfoObject>> totalSet, IContext context ) throws MendixReplicationException {
 
 		MILogNode.Replication_MetaInfo.getLogger().debug("Initializing new MetaInfoProcessor");
-		MetaInfoProcessor miProcessor = new MetaInfoProcessor(this, this.meta_Objects);
+		MetaInfoProcessor miProcessor = new MetaInfoProcessor(this, batch, context);
 		miProcessor.startProcessing();
 
 		/*
 		 * Resetting all cached objects
 		 */
-		this.meta_Objects.clear();
+		batch.clear();
 		
 		//Only iterate over the total set, because this also includes all content from the meta_objects maps
-		for( Entry<String, LinkedHashMap<String,MetaInfoObject>> meoL : this.totalSet_meta_Objects.entrySet() ) {
+		for( Entry<String, LinkedHashMap<String,MetaInfoObject>> meoL : totalSet.entrySet() ) {
 			for( Entry<String, MetaInfoObject> meo : meoL.getValue().entrySet() ) 
 				meo.getValue().clear();
 		}
-		this.totalSet_meta_Objects.clear();
+		totalSet.clear();
+	}
+
+	/**
+	 * Wait until no more than maxPending batches are waiting for the processing thread. The first error that occurred
+	 * while processing a batch is thrown here.
+	 */
+	private void waitForProcessing( int maxPending ) throws MendixReplicationException {
+		while( this.processingBatches.size() > maxPending ) {
+			try {
+				this.processingBatches.poll().get();
+			}
+			catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new MendixReplicationException("Interrupted while processing the objects", MetaInfo._version, e);
+			}
+			catch( ExecutionException e ) {
+				for( Future<Void> batch : this.processingBatches )
+					batch.cancel(true);
+				this.processingBatches.clear();
+
+				if ( e.getCause() instanceof MendixReplicationException )
+					throw (MendixReplicationException) e.getCause();
+				throw new MendixReplicationException(e.getCause().getMessage(), MetaInfo._version, e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Process the current batch and wait until all batches have been processed
+	 */
+	private void processAllObjects() throws MendixReplicationException {
+		this.startProcessingObjects();
+		this.waitForProcessing(0);
+	}
+
+	/**
+	 * Process all object values that have been added so far, without finishing the replication.
+	 * Afterwards the objects of the processed MetaInfoObjects are available
+	 * 
+	 * @throws MendixReplicationException
+	 */
+	public void processObjects() throws MendixReplicationException {
+		try {
+			this.processAllObjects();
+		}
+		catch( Exception e ) {
+			throw new MendixReplicationException(e.getMessage(), MetaInfo._version, e);
+		}
 	}
 
 	/**
@@ -762,7 +905,7 @@ public class MetaInfo {
 	 */
 	public void finished() throws MendixReplicationException {
 		try {
-			this.startProcessingObjects();
+			this.processAllObjects();
 			this.removeUnchangedObjects(this.settings.getMainObjectConfig());
 			this.objectStats.printFinalStatistics();
 			this.objectStats.printNotFoundMessages();
@@ -783,7 +926,7 @@ public class MetaInfo {
 	 */
 	public void finish() throws MendixReplicationException {
 		try {
-			this.startProcessingObjects();
+			this.processAllObjects();
 			this.removeUnchangedObjects(this.settings.getMainObjectConfig());
 			this.objectStats.printFinalStatistics();
 			this.objectStats.printNotFoundMessages();
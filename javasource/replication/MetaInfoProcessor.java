@@ -39,6 +39,8 @@ public class MetaInfoProcessor {
 	private MetaInfo mInfo;
 	private HashMap<String, MetaInfoObject> meta_Objects;
 	private ReplicationSettings settings;
+	/** The context all objects are retrieved, changed and committed with */
+	private IContext context;
 
 	private ObjectStatistics objectStats;
 	private replication.helpers.UncaughtExceptionHandler ueHandler;
@@ -46,8 +48,16 @@ public class MetaInfoProcessor {
 	private ValueParser valueParser;
 
 	public MetaInfoProcessor( MetaInfo mInfo, HashMap<String, MetaInfoObject> meta_Objects ) {
+		this(mInfo, meta_Objects, mInfo.getSettings().getContext());
+	}
+
+	/**
+	 * Process the objects with the context of the thread the processor runs on, instead of the context of the settings
+	 */
+	public MetaInfoProcessor( MetaInfo mInfo, HashMap<String, MetaInfoObject> meta_Objects, IContext context ) {
 		this.meta_Objects = meta_Objects;
 		this.settings = mInfo.getSettings();
+		this.context = context;
 		this.objectStats = mInfo.getObjectStats();
 		this.mInfo = mInfo;
 		this.valueParser = mInfo.getValueParser();
@@ -98,7 +108,7 @@ public class MetaInfoProcessor {
 
 		if ( this.settings.Configuration.RetrieveObjectsAsync ) {
 			if ( objectConfig.getObjectSearchAction() != ObjectSearchAction.CreateEverything ) {
-				this.objectRetrievalArray[0] = new ObjectRetrieval(this.mInfo);
+				this.objectRetrievalArray[0] = new ObjectRetrieval(this.mInfo, this.context);
 				this.objectRetrievalArray[0].startMainObjectSyncDetails(this.meta_Objects, objectConfig.getObjectType());
 			}
 
@@ -106,7 +116,7 @@ public class MetaInfoProcessor {
 			 * Map with the association name as primary key, the submap contains all meta info
 			 * objects, with the objectkey as key and the metainfo object as value
 			 */
-			this.objectRetrievalArray[1] = new ObjectRetrieval(this.mInfo);
+			this.objectRetrievalArray[1] = new ObjectRetrieval(this.mInfo, this.context);
 			this.objectRetrievalArray[1].startAssociatedObjectSyncDetails(this.meta_Objects.values(), associatedObjects);
 
 			checkRunningProcesses();
@@ -138,7 +148,7 @@ public class MetaInfoProcessor {
 					switch (syncAction) {
 					case CreateEverything:
 						if ( mInfoObject.getObject() == null ) {
-							mInfoObject.setObject(Core.instantiate(this.settings.getContext(), objectConfig.getObjectType()), true);
+							mInfoObject.setObject(Core.instantiate(this.context, objectConfig.getObjectType()), true);
 							// Don't update statistics here, do that after changing all the members
 
 							if ( MILogNode.Replication_MetaInfo_MainObject.getLogger().isTraceEnabled() )
@@ -153,7 +163,7 @@ public class MetaInfoProcessor {
 						break;
 					case FindCreate:
 						if ( mInfoObject.getObject() == null ) {
-							mInfoObject.setObject(Core.instantiate(this.settings.getContext(), objectConfig.getObjectType()), true);
+							mInfoObject.setObject(Core.instantiate(this.context, objectConfig.getObjectType()), true);
 							// Don't update statistics here, do that after changing all the members
 
 							if ( MILogNode.Replication_MetaInfo_MainObject.getLogger().isTraceEnabled() )
@@ -175,7 +185,7 @@ public class MetaInfoProcessor {
 										"Skipping object, because only new objects should be created. The key was: " + objectKey);
 						}
 						else {
-							mInfoObject.setObject(Core.instantiate(this.settings.getContext(), objectConfig.getObjectType()), true);
+							mInfoObject.setObject(Core.instantiate(this.context, objectConfig.getObjectType()), true);
 
 							if ( MILogNode.Replication_MetaInfo_MainObject.getLogger().isTraceEnabled() )
 								MILogNode.Replication_MetaInfo_MainObject.getLogger().trace("Creating new object, the key was: " + objectKey);
@@ -221,8 +231,15 @@ public class MetaInfoProcessor {
 										.trace("Adding parent association: " + this.settings.getParentAssociation() + " to object: " + objectKey + ", adding value: " + this.settings
 												.getParentObjectId());
 
-							mInfoObject.getObject().setValue(this.settings.getContext(), this.settings.getParentAssociation(),
-									this.settings.getParentObjectId());
+							IMendixIdentifier parentObjectId = this.settings.getParentObjectId();
+							if ( mInfoObject.getParentObject() != null ) {
+								IMendixObject parentObject = mInfoObject.getParentObject().getObject();
+								if ( parentObject == null )
+									MILogNode.Replication_MetaInfo.getLogger().warn("There is no parent object for object: " + objectKey + ", the parent object has been skipped");
+								parentObjectId = (parentObject != null ? parentObject.getId() : null);
+							}
+
+							mInfoObject.getObject().setValue(this.context, this.settings.getParentAssociation(), parentObjectId);
 						}
 						catch( CoreRuntimeException e ) {
 							if ( !this.settings.getErrorHandler().valueException(e, e.getMessage()) )
@@ -274,7 +291,7 @@ public class MetaInfoProcessor {
 				}
 
 				if ( objectList.size() > 0 )
-					Core.commit(this.settings.getContext(), objectList);
+					Core.commit(this.context, objectList);
 
 				objectList.clear();
 
@@ -305,7 +322,7 @@ public class MetaInfoProcessor {
 						"Not committing object: " + objectConfig.getObjectType() + "/(" + entry.getKey() + ") because it has state: " + state);
 		}
 		if ( objectList.size() > 0 )
-			Core.commit(this.settings.getContext(), objectList);
+			Core.commit(this.context, objectList);
 		objectList.clear();
 		this.mInfo.TimeMeasurement.endPerformanceTest("Storing -> Commit parent objects");
 
@@ -329,7 +346,7 @@ public class MetaInfoProcessor {
 			}
 
 			if ( objectList.size() > 0 )
-				Core.commit(this.settings.getContext(), objectList);
+				Core.commit(this.context, objectList);
 
 			objectList.clear();
 		}
@@ -404,7 +421,7 @@ public class MetaInfoProcessor {
 
 							if ( !isObjectKeyEmpty(miObject.getObjectKey()) || associationConfig.ignoreEmptyKeys() == false ) {
 								
-								miObject.setObject(Core.instantiate(this.settings.getContext(), objectType), true);
+								miObject.setObject(Core.instantiate(this.context, objectType), true);
 								
 								if ( MILogNode.Replication_MetaInfo_AssociatedObjects.getLogger().isTraceEnabled() )
 									MILogNode.Replication_MetaInfo_AssociatedObjects
@@ -484,7 +501,7 @@ public class MetaInfoProcessor {
 	protected MetaInfoObjectState changeMembersForBatch( MetaInfoObject mInfoObject, HashMap<String, Map<String, MetaInfoObject>> associatedObjects, boolean commitUnchangedObject ) {
 		IMendixObject mainMxObject = mInfoObject.getObject();
 		for( Entry<String, Object> memberValue : mInfoObject.getAttributeValues().entrySet() ) {
-			updateMemberAndSetState(this.settings.getContext(), mInfoObject, mainMxObject, memberValue.getKey(), memberValue.getValue(),
+			updateMemberAndSetState(this.context, mInfoObject, mainMxObject, memberValue.getKey(), memberValue.getValue(),
 					commitUnchangedObject, AssociationDataHandling.Overwrite);
 		}
 
@@ -528,11 +545,11 @@ public class MetaInfoProcessor {
 
 						if ( associationConfig.isReferencedObjectAssociationOwner() ) {
 							if ( referencedMxObject != null )
-								updateMemberAndSetState(this.settings.getContext(), curReferencedObject, referencedMxObject, associationName,
+								updateMemberAndSetState(this.context, curReferencedObject, referencedMxObject, associationName,
 										mainMxObject.getId(), commitUnchangedObject, associationConfig.getAssociationDataHandling());
 						}
 						else
-							updateMemberAndSetState(this.settings.getContext(), mInfoObject, mainMxObject, associationName, referencedMxObjectId,
+							updateMemberAndSetState(this.context, mInfoObject, mainMxObject, associationName, referencedMxObjectId,
 									commitUnchangedObject, associationConfig.getAssociationDataHandling());
 					}
 					catch( CoreException e ) {
@@ -590,12 +607,12 @@ public class MetaInfoProcessor {
 						if ( associationConfig.isReferencedObjectAssociationOwner() ) {
 							for( MetaInfoObject curReferencedObject : referenceEntry.getValue() ) {
 								if ( curReferencedObject.getObject() != null )
-									updateMemberAndSetState(this.settings.getContext(), curReferencedObject, curReferencedObject.getObject(),
+									updateMemberAndSetState(this.context, curReferencedObject, curReferencedObject.getObject(),
 											associationName, mainMxObject.getId(), commitUnchangedObject, dataHandling);
 							}
 						}
 						else {
-							updateMemberAndSetState(this.settings.getContext(), mInfoObject, mainMxObject, associationName, refObjectIdList,
+							updateMemberAndSetState(this.context, mInfoObject, mainMxObject, associationName, refObjectIdList,
 									commitUnchangedObject, dataHandling);
 						}
 					}
@@ -714,7 +731,7 @@ public class MetaInfoProcessor {
 					if ( builder.length() > 0 ) {
 						IDataTable table;
 						try {
-							table = Core.retrieveOQLDataTable(this.settings.getContext(), builder.toString());
+							table = Core.retrieveOQLDataTable(this.context, builder.toString());
 						}
 						catch( Exception e ) {
 							if ( e.getMessage() != null && e.getMessage().contains("Query result is not valid") )
@@ -765,7 +782,7 @@ public class MetaInfoProcessor {
 								// batches
 								for( int i = 0; i < this.settings.Configuration.RetrieveById_Limit && rowIter.hasNext(); i++ ) {
 									row = rowIter.next();
-									IMendixIdentifier id = (IMendixIdentifier) row.getValue(this.settings.getContext(), 0);
+									IMendixIdentifier id = (IMendixIdentifier) row.getValue(this.context, 0);
 									idList.add(id);
 								}
 
@@ -774,7 +791,7 @@ public class MetaInfoProcessor {
 									TreeMap<String, Boolean> keys = this.settings.getObjectKeys(objectIdentifier);
 									List<IMendixObject> result;
 									try {
-										result = Core.retrieveIdList(this.settings.getContext(), idList);
+										result = Core.retrieveIdList(this.context, idList);
 									}
 									catch( Exception e ) {
 										throw new MendixReplicationRuntimeException("Unable to retrieve the id's from the database after executing the OQL query for object: " + objectIdentifier + " range: " + offset + "/" + limit + " because of error: " + e.getMessage(), e);
@@ -783,7 +800,7 @@ public class MetaInfoProcessor {
 									String key;
 									MetaInfoObject miObj;
 									for( IMendixObject mxObject : result ) {
-										key = this.valueParser.buildObjectKey(keys, mxObject, isAssociation);
+										key = this.valueParser.buildObjectKey(this.context, keys, mxObject, isAssociation);
 										miObj = meta_Objects.get(key);
 
 										if ( toManyObjectsRetrieved )
@@ -20,6 +20,7 @@ import replication.helpers.OQLBuilder;
 import com.mendix.core.Core;
 import com.mendix.systemwideinterfaces.connectionbus.data.IDataRow;
 import com.mendix.systemwideinterfaces.connectionbus.data.IDataTable;
+import com.mendix.systemwideinterfaces.core.IContext;
 import com.mendix.systemwideinterfaces.core.IMendixIdentifier;
 import com.mendix.systemwideinterfaces.core.IMendixObject;
 
@@ -32,6 +33,7 @@ public class ObjectRetrieval extends Thread {
 
 	private HashMap<String, MetaInfoObject> meta_Objects;
 	private ReplicationSettings settings;
+	private IContext context;
 	private replication.helpers.UncaughtExceptionHandler ueHandler;
 	private ValueParser valueParser;
 	private Type type;
@@ -40,7 +42,15 @@ public class ObjectRetrieval extends Thread {
 	private HashMap<String, Map<String, MetaInfoObject>> associationResultList;
 
 	public ObjectRetrieval( MetaInfo mInfo ) {
+		this(mInfo, mInfo.getSettings().getContext());
+	}
+
+	/**
+	 * Retrieve the objects with the context of the thread that is processing the MetaInfo
+	 */
+	public ObjectRetrieval( MetaInfo mInfo, IContext context ) {
 		this.settings = mInfo.getSettings();
+		this.context = context;
 		this.valueParser = mInfo.getValueParser();
 
 		this.ueHandler = new replication.helpers.UncaughtExceptionHandler();
@@ -100,7 +110,7 @@ public class ObjectRetrieval extends Thread {
 					if ( builder.length() > 0 ) {
 						IDataTable table;
 						try {
-							table = Core.retrieveOQLDataTable(this.settings.getContext(), builder.toString());
+							table = Core.retrieveOQLDataTable(this.context, builder.toString());
 						}
 						catch( Exception e ) {
 							throw new MendixReplicationRuntimeException("Unable to execute the OQL query for objects: " + objectIdentifier + " range: " + offset + "/" + limit + " because of error: " + e.getMessage(), e);
@@ -141,7 +151,7 @@ public class ObjectRetrieval extends Thread {
 								// Update the idlist so we can retrieve the specific objects in batches
 								for( int i = 0; i < this.settings.Configuration.RetrieveById_Limit && rowIter.hasNext(); i++ ) {
 									row = rowIter.next();
-									IMendixIdentifier id = (IMendixIdentifier) row.getValue(this.settings.getContext(), 0);
+									IMendixIdentifier id = (IMendixIdentifier) row.getValue(this.context, 0);
 									idList.add(id);
 								}
 
@@ -150,7 +160,7 @@ public class ObjectRetrieval extends Thread {
 									TreeMap<String, Boolean> keys = this.settings.getObjectKeys(objectIdentifier);
 									List<IMendixObject> result;
 									try {
-										result = Core.retrieveIdList(this.settings.getContext(), idList);
+										result = Core.retrieveIdList(this.context, idList);
 									}
 									catch( Exception e ) {
 										throw new MendixReplicationRuntimeException("Unable to retrieve the id's from the database after executing the OQL query for object: " + objectIdentifier + " range: " + offset + "/" + limit + " because of error: " + e.getMessage(), e);
@@ -159,7 +169,7 @@ public class ObjectRetrieval extends Thread {
 									String key;
 									MetaInfoObject miObj;
 									for( IMendixObject mxObject : result ) {
-										key = this.valueParser.buildObjectKey(keys, mxObject, isAssociation);
+										key = this.valueParser.buildObjectKey(this.context, keys, mxObject, isAssociation);
 										miObj = meta_Objects.get(key);
 
 										if ( toManyObjectsRetrieved )
@@ -54,6 +54,16 @@ public abstract class ReplicationSettings {
 		public int MetaInfoProcessingBatchThreshold = 1000;
 
 		public boolean RetrieveObjectsAsync = false;
+		/**
+		 * VALUE: false Process each batch of objects on a separate thread while the next batch is being filled. The batches
+		 * are processed one at a time in the order they were filled. Ignored when a value is parsed by a microflow.
+		 * The processing thread uses a context of its own for the same user, so the objects are committed in a separate
+		 * transaction: objects that are created or changed in the transaction of the calling microflow but aren't
+		 * committed yet can't be found, and a rollback of that microflow doesn't undo the imported objects.
+		 */
+		public boolean ProcessBatchesAsync = false;
+		/** VALUE: 1 Nr of filled batches that can wait for processing, filling the next batch waits when this nr is reached */
+		public int AsyncProcessingQueueSize = 1;
 
 		public void calculateOQLRetrieveLimit( int keySize ) {
 
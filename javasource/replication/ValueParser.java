@@ -1,15 +1,12 @@
 package replication;
 
 import java.math.BigDecimal;
-import java.text.NumberFormat;
-import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TimeZone;
@@ -21,12 +18,15 @@ import org.apache.commons.lang.StringUtils;
 
 import replication.ReplicationSettings.MendixReplicationException;
 import replication.ReplicationSettings.ObjectSearchAction;
+import replication.helpers.DateFormatCache;
+import replication.helpers.DecimalRenderer;
 import replication.implementation.NotImplementedException;
 import replication.interfaces.IValueParser;
 
 import com.mendix.core.Core;
 import com.mendix.core.CoreException;
 import com.mendix.logging.ILogNode;
+import com.mendix.systemwideinterfaces.core.IContext;
 import com.mendix.systemwideinterfaces.core.IMendixIdentifier;
 import com.mendix.systemwideinterfaces.core.IMendixObject;
 import com.mendix.systemwideinterfaces.core.meta.IMetaPrimitive.PrimitiveType;
@@ -39,7 +39,6 @@ import com.mendix.systemwideinterfaces.core.meta.IMetaPrimitive.PrimitiveType;
  */
 public abstract class ValueParser {
 
-	private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
 	public static final String keySeparator = "|KEY|";
 
 	protected ReplicationSettings settings;
@@ -61,36 +60,43 @@ public abstract class ValueParser {
 	}
 
 	public Object getValueFromObject( IMendixObject object, String keyAlias ) throws MendixReplicationException {
+		return getValueFromObject(this.settings.getContext(), object, keyAlias);
+	}
+
+	/**
+	 * Read the key value from the object with the context of the thread that is processing the object
+	 */
+	public Object getValueFromObject( IContext context, IMendixObject object, String keyAlias ) throws MendixReplicationException {
 		Object value = null;
 		if ( this.settings.treatFieldAsReference(keyAlias) ) {
-			IMendixIdentifier id = object.getValue(this.settings.getContext(), this.settings.getAssociationNameByAlias(keyAlias));
+			IMendixIdentifier id = object.getValue(context, this.settings.getAssociationNameByAlias(keyAlias));
 			if ( id != null ) {
 				IMendixObject object2;
 				try {
-					object2 = Core.retrieveId(this.settings.getContext(), id);
+					object2 = Core.retrieveId(context, id);
 				}
 				catch( CoreException e ) {
 					throw new MendixReplicationException(e);
 				}
 				if ( object2 != null )
-					value = object2.getValue(this.settings.getContext(), this.settings.getAssociationColumnByAlias(keyAlias));
+					value = object2.getValue(context, this.settings.getAssociationColumnByAlias(keyAlias));
 				object2 = null;
 			}
 			id = null;
 		}
 		else if ( this.settings.treatFieldAsReferenceSet(keyAlias) ) {
-			List<IMendixIdentifier> id = object.getValue(this.settings.getContext(), this.settings.getAssociationNameByAlias(keyAlias));
+			List<IMendixIdentifier> id = object.getValue(context, this.settings.getAssociationNameByAlias(keyAlias));
 			if ( id != null && id.size() >= 1 ) {
 				IMendixObject object2;
 				try {
-					object2 = Core.retrieveId(this.settings.getContext(), id.get(0));
+					object2 = Core.retrieveId(context, id.get(0));
 				}
 				catch( CoreException e ) {
 					throw new MendixReplicationException(e);
 				}
 
 				if ( object2 != null )
-					value = object2.getValue(this.settings.getContext(), this.settings.getAssociationColumnByAlias(keyAlias));
+					value = object2.getValue(context, this.settings.getAssociationColumnByAlias(keyAlias));
 				object2 = null;
 
 				if ( id.size() > 1 )
@@ -101,13 +107,20 @@ public abstract class ValueParser {
 			id = null;
 		}
 		else
-			value = object.getValue(this.settings.getContext(), this.settings.getMemberNameByAlias(keyAlias));
+			value = object.getValue(context, this.settings.getMemberNameByAlias(keyAlias));
 
 		return value;
 	}
 
 
 	public String buildObjectKey( TreeMap<String, Boolean> keySet, IMendixObject object, boolean isAssociation ) throws ParseException {
+		return buildObjectKey(this.settings.getContext(), keySet, object, isAssociation);
+	}
+
+	/**
+	 * Build the key of the object with the context of the thread that is processing the object
+	 */
+	public String buildObjectKey( IContext context, TreeMap<String, Boolean> keySet, IMendixObject object, boolean isAssociation ) throws ParseException {
 		StringBuilder keyBuilder = new StringBuilder();
 
 		Iterator<Entry<String, Boolean>> keyIter = keySet.entrySet().iterator();
@@ -129,9 +142,9 @@ public abstract class ValueParser {
 					processedMembers.add(keyMember);
 					Object value;
 					if ( isAssociation )
-						value = object.getValue(this.settings.getContext(), keyMember);
+						value = object.getValue(context, keyMember);
 					else
-						value = this.getValueFromObject(object, keyAlias);
+						value = this.getValueFromObject(context, object, keyAlias);
 
 					String keyValue = this.processKeyValue(keyIsCaseSensitive, this.getKeyValueByPrimitiveType(this.settings.getMemberType(keyAlias), keyAlias, value));
 
@@ -308,7 +321,7 @@ public abstract class ValueParser {
 	 */
 	private static String getDateKey( Object value ) {
 		if ( value != null ) {
-			return dateFormat.format((Date) value);
+			return DateFormatCache.format((Date) value, DateFormatCache.DEFAULT_MASK, null);
 		}
 
 		return null;
@@ -435,19 +448,7 @@ public abstract class ValueParser {
 				strValue = getFormattedNumber((Double) value, 2, 20);
 			}
 			else if ( value instanceof Date ) {
-				synchronized (dateFormat) {
-					SimpleDateFormat format = dateFormat;
-					if( dateInputMask != null ) {
-						format = new SimpleDateFormat(dateInputMask);
-					}
-					
-					if ( timeZone != null )
-						format.setTimeZone(timeZone);
-					else
-						format.setTimeZone(TimeZone.getDefault());
-
-					strValue = format.format((Date) value);
-				}	
+				strValue = DateFormatCache.format((Date) value, dateInputMask, timeZone);
 			}
 			else if ( value != null )
 				strValue = String.valueOf(value);
@@ -553,19 +554,7 @@ public abstract class ValueParser {
 			String strValue = ((String) value).trim();
 			if ( !"".equals(strValue) ) {
 				try {
-					synchronized (dateFormat) {
-						SimpleDateFormat format = dateFormat;
-						if( inputMask != null ) {
-							format = new SimpleDateFormat(inputMask);
-						}
-						
-						if ( timeZone != null )
-							format.setTimeZone(timeZone);
-						else
-							format.setTimeZone(TimeZone.getDefault());
-
-						dateValue = format.parse(strValue);
-					}
+					dateValue = DateFormatCache.parse(strValue, inputMask, timeZone);
 				}
 				catch( java.text.ParseException e ) {
 					throw new ParseException(e);
@@ -781,22 +770,37 @@ public abstract class ValueParser {
 		return strValue;
 	}
 
-	private static String getFormattedNumber( Double curValue, int minPrecision, int maxPrecision ) {
-		NumberFormat numberFormat = NumberFormat.getInstance(Locale.ENGLISH);
-		numberFormat.setMaximumFractionDigits(maxPrecision);
-		numberFormat.setGroupingUsed(false);
-		numberFormat.setMinimumFractionDigits(minPrecision);
+	/**
+	 * Append the number to the buffer, formatted in the same way as getStringValueFromNumber
+	 * 
+	 * @return false when the value isn't a number, nothing is appended in that case
+	 */
+	public static boolean appendNumber( Object value, Integer precision, StringBuilder buffer ) throws ParseException {
+		double dblValue;
+		if ( value instanceof BigDecimal )
+			dblValue = ((BigDecimal) value).doubleValue();
+		else if ( value instanceof Double )
+			dblValue = (Double) value;
+		else {
+			Double parsedValue = ValueParser.getDoubleValue(value);
+			if ( parsedValue == null )
+				return false;
+			dblValue = parsedValue;
+		}
 
-		if ( !Double.isNaN(curValue) ) {
-			String formattedNr = numberFormat.format(curValue);
-			logNode.debug("Trying to format a double to a string, the formatted value is: " + formattedNr);
+		return DecimalRenderer.getInstance(Math.max(precision, 0), Math.max(precision, 0)).append(dblValue, buffer);
+	}
 
-			return formattedNr;
+	private static String getFormattedNumber( double curValue, int minPrecision, int maxPrecision ) {
+		String formattedNr = DecimalRenderer.getInstance(Math.max(minPrecision, 0), Math.max(maxPrecision, 0)).format(curValue);
+		if ( logNode.isDebugEnabled() ) {
+			if ( formattedNr != null )
+				logNode.debug("Trying to format a double to a string, the formatted value is: " + formattedNr);
+			else
+				logNode.debug("The current value is not a valid number returning: null");
 		}
-		logNode.debug("The current value is not a valid number returning: null");
-
 
-		return null;
+		return formattedNr;
 	}
 
 
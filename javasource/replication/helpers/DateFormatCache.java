@@ -0,0 +1,198 @@
+package replication.helpers;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.SignStyle;
+import java.time.temporal.ChronoField;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lock free cache of the date formats for each mask and time zone, shared by all threads.
+ *
+ * Dates are formatted with an immutable java.time formatter whenever the mask only contains numeric fields, those
+ * produce exactly the same text as SimpleDateFormat. Masks with text fields (month names, days, am/pm, zones) and
+ * dates before 1900 are formatted by a SimpleDateFormat that is kept per thread.
+ * Parsing always uses the SimpleDateFormat of the thread, java.time can't parse as lenient as SimpleDateFormat does.
+ */
+public class DateFormatCache {
+
+	/** The mask that is used when no mask is specified */
+	public static final String DEFAULT_MASK = "yyyy-MM-dd";
+
+	/**
+	 * 1900-01-01, before this date SimpleDateFormat uses the Julian calendar (before 1582) and the standard offset of
+	 * the time zone, where java.time uses the ISO calendar and the local mean time
+	 */
+	private static final long JAVA_TIME_FROM = -2208988800000L;
+
+	private static ConcurrentHashMap<String, CachedFormat> cache = new ConcurrentHashMap<String, CachedFormat>();
+
+	private static class CachedFormat {
+		private DateTimeFormatter formatter;
+		private ThreadLocal<SimpleDateFormat> format;
+
+		private CachedFormat( final String mask, final TimeZone timeZone ) {
+			// Create the format once, so an invalid mask fails just like it did before
+			final SimpleDateFormat template = new SimpleDateFormat(mask);
+			template.setTimeZone(timeZone);
+			this.format = new ThreadLocal<SimpleDateFormat>() {
+				@Override
+				protected SimpleDateFormat initialValue() {
+					return (SimpleDateFormat) template.clone();
+				}
+			};
+
+			DateTimeFormatterBuilder builder = createNumericBuilder(mask);
+			if ( builder != null )
+				this.formatter = builder.toFormatter().withZone(timeZone.toZoneId());
+		}
+	}
+
+	/**
+	 * @param mask the SimpleDateFormat mask, or null for the default mask
+	 * @param timeZone the time zone, or null for the default time zone
+	 */
+	public static String format( Date date, String mask, TimeZone timeZone ) {
+		CachedFormat cachedFormat = getCachedFormat(mask, timeZone);
+		if ( cachedFormat.formatter != null && date.getTime() >= JAVA_TIME_FROM )
+			return cachedFormat.formatter.format(Instant.ofEpochMilli(date.getTime()));
+
+		return cachedFormat.format.get().format(date);
+	}
+
+	/**
+	 * @param mask the SimpleDateFormat mask, or null for the default mask
+	 * @param timeZone the time zone, or null for the default time zone
+	 */
+	public static Date parse( String value, String mask, TimeZone timeZone ) throws ParseException {
+		return getCachedFormat(mask, timeZone).format.get().parse(value);
+	}
+
+	private static CachedFormat getCachedFormat( String mask, TimeZone timeZone ) {
+		if ( mask == null )
+			mask = DEFAULT_MASK;
+		if ( timeZone == null )
+			timeZone = TimeZone.getDefault();
+
+		String key = mask + "|" + timeZone.getID();
+		CachedFormat cachedFormat = cache.get(key);
+		if ( cachedFormat == null ) {
+			cachedFormat = new CachedFormat(mask, timeZone);
+			CachedFormat existing = cache.putIfAbsent(key, cachedFormat);
+			if ( existing != null )
+				cachedFormat = existing;
+		}
+
+		return cachedFormat;
+	}
+
+	/**
+	 * @return the builder with the same output as the SimpleDateFormat mask, or null when the mask contains fields
+	 *         that can't be formatted in exactly the same way
+	 */
+	private static DateTimeFormatterBuilder createNumericBuilder( String mask ) {
+		DateTimeFormatterBuilder builder = new DateTimeFormatterBuilder();
+
+		int i = 0;
+		while( i < mask.length() ) {
+			char c = mask.charAt(i);
+
+			if ( c == '\'' ) {
+				if ( i + 1 < mask.length() && mask.charAt(i + 1) == '\'' ) {
+					builder.appendLiteral('\'');
+					i += 2;
+					continue;
+				}
+
+				// Quoted text, two quotes inside the text are a single quote
+				StringBuilder literal = new StringBuilder();
+				i++;
+				while( i < mask.length() ) {
+					if ( mask.charAt(i) == '\'' ) {
+						if ( i + 1 < mask.length() && mask.charAt(i + 1) == '\'' ) {
+							literal.append('\'');
+							i += 2;
+							continue;
+						}
+						break;
+					}
+					literal.append(mask.charAt(i++));
+				}
+				if ( i >= mask.length() )
+					return null;
+
+				builder.appendLiteral(literal.toString());
+				i++;
+				continue;
+			}
+
+			if ( !((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) ) {
+				builder.appendLiteral(c);
+				i++;
+				continue;
+			}
+
+			int count = 1;
+			while( i + count < mask.length() && mask.charAt(i + count) == c )
+				count++;
+			i += count;
+			if ( count > 19 )
+				return null;
+
+			ChronoField field;
+			switch (c) {
+			case 'y':
+				if ( count == 2 ) {
+					builder.appendValueReduced(ChronoField.YEAR_OF_ERA, 2, 2, 2000);
+					continue;
+				}
+				field = ChronoField.YEAR_OF_ERA;
+				break;
+			case 'M':
+				if ( count > 2 )
+					return null;
+				field = ChronoField.MONTH_OF_YEAR;
+				break;
+			case 'd':
+				field = ChronoField.DAY_OF_MONTH;
+				break;
+			case 'D':
+				field = ChronoField.DAY_OF_YEAR;
+				break;
+			case 'H':
+				field = ChronoField.HOUR_OF_DAY;
+				break;
+			case 'k':
+				field = ChronoField.CLOCK_HOUR_OF_DAY;
+				break;
+			case 'K':
+				field = ChronoField.HOUR_OF_AMPM;
+				break;
+			case 'h':
+				field = ChronoField.CLOCK_HOUR_OF_AMPM;
+				break;
+			case 'm':
+				field = ChronoField.MINUTE_OF_HOUR;
+				break;
+			case 's':
+				field = ChronoField.SECOND_OF_MINUTE;
+				break;
+			case 'S':
+				// SimpleDateFormat prints the milliseconds as a number, not as a fraction
+				field = ChronoField.MILLI_OF_SECOND;
+				break;
+			default:
+				return null;
+			}
+
+			builder.appendValue(field, count, 19, SignStyle.NORMAL);
+		}
+
+		return builder;
+	}
+}
@@ -0,0 +1,186 @@
+package replication.helpers;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Formats doubles exactly like a NumberFormat for Locale.ENGLISH without grouping, rounding HALF_EVEN, into a buffer
+ * supplied by the caller.
+ *
+ * The digits are taken from the shortest representation of the double, the same digits NumberFormat rounds. Only when
+ * those digits end exactly halfway the last fraction digit the value is passed on to a NumberFormat of the thread,
+ * since the rounding direction then depends on the exact binary value. Values of 1e15 and more are passed on as well,
+ * from there on the shortest representation (Double.toString on JDK 19 and later) no longer has to contain the digits
+ * NumberFormat prints. The renderers are cached for each precision.
+ * 
+ * DecimalRendererCheck compares the output with NumberFormat for random values.
+ */
+public class DecimalRenderer {
+
+	/**
+	 * From this value on the digits of Double.toString can differ from the digits NumberFormat prints
+	 */
+	static final double NUMBERFORMAT_THRESHOLD = 1e15;
+
+	private static ConcurrentHashMap<Integer, DecimalRenderer> cache = new ConcurrentHashMap<Integer, DecimalRenderer>();
+
+	private int minPrecision;
+	private int maxPrecision;
+	private ThreadLocal<NumberFormat> numberFormat;
+
+	private DecimalRenderer( final int minPrecision, final int maxPrecision ) {
+		this.minPrecision = minPrecision;
+		this.maxPrecision = maxPrecision;
+		this.numberFormat = new ThreadLocal<NumberFormat>() {
+			@Override
+			protected NumberFormat initialValue() {
+				NumberFormat numberFormat = NumberFormat.getInstance(Locale.ENGLISH);
+				numberFormat.setMaximumFractionDigits(maxPrecision);
+				numberFormat.setGroupingUsed(false);
+				numberFormat.setMinimumFractionDigits(minPrecision);
+
+				return numberFormat;
+			}
+		};
+	}
+
+	/**
+	 * @return the renderer that prints at least minPrecision and at most maxPrecision fraction digits
+	 */
+	public static DecimalRenderer getInstance( int minPrecision, int maxPrecision ) {
+		if ( minPrecision < 0 || maxPrecision < 0 || minPrecision > 0xFFFF || maxPrecision > 0xFFFF )
+			throw new IllegalArgumentException("Invalid precision: " + minPrecision + " - " + maxPrecision);
+
+		Integer key = (minPrecision << 16) | maxPrecision;
+		DecimalRenderer renderer = cache.get(key);
+		if ( renderer == null ) {
+			renderer = new DecimalRenderer(minPrecision, Math.max(minPrecision, maxPrecision));
+			DecimalRenderer existing = cache.putIfAbsent(key, renderer);
+			if ( existing != null )
+				renderer = existing;
+		}
+
+		return renderer;
+	}
+
+	/**
+	 * @return the formatted value, or null when the value is not a number
+	 */
+	public String format( double value ) {
+		if ( Double.isNaN(value) )
+			return null;
+
+		StringBuilder buffer = new StringBuilder(24);
+		this.append(value, buffer);
+
+		return buffer.toString();
+	}
+
+	/**
+	 * Append the formatted value to the buffer
+	 *
+	 * @return false when the value is not a number, nothing is appended in that case
+	 */
+	public boolean append( double value, StringBuilder buffer ) {
+		if ( Double.isNaN(value) )
+			return false;
+
+		boolean negative = (value < 0.0) || (value == 0.0 && 1 / value < 0.0);
+		double absValue = Math.abs(value);
+		if ( Double.isInfinite(absValue) ) {
+			if ( negative )
+				buffer.append('-');
+			buffer.append('\u221E');
+			return true;
+		}
+
+		if ( absValue >= NUMBERFORMAT_THRESHOLD ) {
+			buffer.append(this.numberFormat.get().format(value));
+			return true;
+		}
+
+		// Digits without leading and trailing zeros, the decimal point is placed after decimalAt digits
+		String repr = Double.toString(absValue);
+		char[] digits = new char[repr.length()];
+		int count = 0, decimalAt = 0, exponent = 0;
+		boolean afterPoint = false;
+		for( int i = 0; i < repr.length(); i++ ) {
+			char c = repr.charAt(i);
+			if ( c == '.' )
+				afterPoint = true;
+			else if ( c == 'E' ) {
+				exponent = Integer.parseInt(repr.substring(i + 1));
+				break;
+			}
+			else if ( c == '0' && count == 0 ) {
+				if ( afterPoint )
+					decimalAt--;
+			}
+			else {
+				digits[count++] = c;
+				if ( !afterPoint )
+					decimalAt++;
+			}
+		}
+		decimalAt += exponent;
+		while( count > 0 && digits[count - 1] == '0' )
+			count--;
+
+		int keep = decimalAt + this.maxPrecision;
+		if ( keep >= 0 && keep == count - 1 && digits[keep] == '5' ) {
+			// The digits end exactly halfway, NumberFormat decides on the exact binary value in a way that can't be
+			// reproduced reliably from the digits, so these values are formatted by NumberFormat itself
+			buffer.append(this.numberFormat.get().format(value));
+			return true;
+		}
+
+		if ( negative )
+			buffer.append('-');
+
+		if ( keep < count ) {
+			// Round HALF_UP, halfway values have been handled above
+			if ( keep >= 0 && digits[keep] >= '5' ) {
+				// Increment the kept digits, a carry past the first digit adds a new leading 1
+				int i = keep - 1;
+				while( i >= 0 && digits[i] == '9' )
+					i--;
+				if ( i < 0 ) {
+					digits[0] = '1';
+					count = 1;
+					decimalAt++;
+				}
+				else {
+					digits[i]++;
+					count = i + 1;
+				}
+			}
+			else {
+				count = Math.max(keep, 0);
+				while( count > 0 && digits[count - 1] == '0' )
+					count--;
+			}
+		}
+
+		// Integer part, at least one digit
+		if ( decimalAt <= 0 || count == 0 )
+			buffer.append('0');
+		else {
+			for( int i = 0; i < decimalAt; i++ )
+				buffer.append(i < count ? digits[i] : '0');
+		}
+
+		// Fraction part
+		int fractionDigits = (count == 0 ? 0 : Math.max(count - decimalAt, 0));
+		int printedDigits = Math.max(fractionDigits, this.minPrecision);
+		if ( printedDigits > 0 ) {
+			buffer.append('.');
+			for( int pos = 0; pos < printedDigits; pos++ ) {
+				int index = decimalAt + pos;
+				buffer.append(count > 0 && index >= 0 && index < count ? digits[index] : '0');
+			}
+		}
+
+		return true;
+	}
+}
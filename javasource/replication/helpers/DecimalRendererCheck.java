@@ -0,0 +1,82 @@
+package replication.helpers;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares the output of the DecimalRenderer with the NumberFormat it replaces, for random values and for values known
+ * to differ between the JDK versions. Run it on each supported JDK, it exits with status 1 when any value differs.
+ *
+ * Arguments: [iterations] [seed]
+ */
+public class DecimalRendererCheck {
+
+	private static final double[] REGRESSION_VALUES = {
+			0.0, -0.0, 0.5, 1.5, 2.5, 0.125, 1.005, 0.1 + 0.2, 123456.785, 999999999999999.9, 1e15, 1e16, 2e23, 1e23,
+			1.3735998031820014E18, 9.007199254740993E15, Double.MIN_VALUE, Double.MAX_VALUE, 1e-7, 4.35E-4 };
+
+	public static void main( String[] args ) {
+		int iterations = (args.length > 0 ? Integer.parseInt(args[0]) : 1000000);
+		long seed = (args.length > 1 ? Long.parseLong(args[1]) : System.currentTimeMillis());
+		Random random = new Random(seed);
+
+		int failures = 0;
+		for( int precision = 0; precision <= 8; precision++ ) {
+			for( double value : REGRESSION_VALUES ) {
+				failures += check(value, 0, precision);
+				failures += check(-value, precision, precision);
+			}
+		}
+
+		for( int i = 0; i < iterations; i++ ) {
+			int maxPrecision = random.nextInt(10);
+			int minPrecision = random.nextInt(maxPrecision + 1);
+
+			double value;
+			switch (random.nextInt(4)) {
+			case 0:
+				// Any bit pattern, covers the whole range of exponents
+				value = Double.longBitsToDouble(random.nextLong());
+				break;
+			case 1:
+				// Values with few decimals, these end halfway most often
+				value = Math.round(random.nextDouble() * 1e7) / Math.pow(10, random.nextInt(8));
+				break;
+			case 2:
+				// Values around the threshold of the NumberFormat fallback
+				value = DecimalRenderer.NUMBERFORMAT_THRESHOLD * (0.5 + random.nextDouble() * 100);
+				break;
+			default:
+				value = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(40) - 20);
+				break;
+			}
+			if ( Double.isNaN(value) || Double.isInfinite(value) )
+				continue;
+
+			failures += check(value, minPrecision, maxPrecision);
+			if ( failures > 100 )
+				break;
+		}
+
+		System.out.println("Java " + System.getProperty("java.version") + ", seed " + seed + ": " + failures + " difference(s)");
+		if ( failures > 0 )
+			System.exit(1);
+	}
+
+	private static int check( double value, int minPrecision, int maxPrecision ) {
+		NumberFormat numberFormat = NumberFormat.getInstance(Locale.ENGLISH);
+		numberFormat.setMaximumFractionDigits(maxPrecision);
+		numberFormat.setGroupingUsed(false);
+		numberFormat.setMinimumFractionDigits(minPrecision);
+
+		String expected = numberFormat.format(value);
+		String actual = DecimalRenderer.getInstance(minPrecision, maxPrecision).format(value);
+		if ( expected.equals(actual) )
+			return 0;
+
+		System.out.println("Difference for " + value + " (" + minPrecision + "-" + maxPrecision + "): expected " + expected
+				+ " but got " + actual);
+		return 1;
+	}
+}
@@ -0,0 +1,23 @@
+package replication.helpers;
+
+import com.mendix.core.Core;
+import com.mendix.systemwideinterfaces.core.IContext;
+
+/**
+ * Creates the contexts for threads that access the database at the same time as the thread that started them. A
+ * context is not thread safe, so every such thread needs a context of its own.
+ *
+ * The new context belongs to the same session, so the thread acts as the same user. It does have its own transaction:
+ * objects that are created or changed in the transaction of the original context can't be retrieved by the new context
+ * until that transaction is committed, and a rollback of that transaction doesn't undo what the new context committed.
+ */
+public class WorkerContext {
+
+	public static IContext create( IContext context ) {
+		IContext workerContext = (context.getSession() != null ? context.getSession().createContext() : Core.createSystemContext());
+		if ( context.isSudo() )
+			workerContext = workerContext.createSudoClone();
+
+		return workerContext;
+	}
+}
@@ -25,52 +25,70 @@ public class MFValueParser implements IValueParser {
 	private IContext context;
 
 	public MFValueParser( IContext context, IMendixObject microflowObject ) throws CoreException {
-		// TODO, build structured solution for creating microflows.
 		this.context = context;
-		this.mfName = microflowObject.getValue(this.context, Microflows.MemberNames.CompleteName.toString());
-		List<IMendixIdentifier> paramaters = microflowObject.getValue(this.context, Microflows.MemberNames.Microflows_InputParameter.toString());
+		readMicroflow(context, microflowObject);
+	}
+
+	private MFValueParser() {
+	}
+
+	/**
+	 * Create a parser that doesn't keep the context it is created with, so it can be kept after the action that
+	 * created it has finished. The microflow can only be executed using {@link #parseValue(IContext, Object)}.
+	 */
+	public static MFValueParser createShared( IContext context, IMendixObject microflowObject ) throws CoreException {
+		MFValueParser parser = new MFValueParser();
+		parser.readMicroflow(context, microflowObject);
+
+		return parser;
+	}
+
+	private void readMicroflow( IContext context, IMendixObject microflowObject ) throws CoreException {
+		// TODO, build structured solution for creating microflows.
+		this.mfName = microflowObject.getValue(context, Microflows.MemberNames.CompleteName.toString());
+		List<IMendixIdentifier> paramaters = microflowObject.getValue(context, Microflows.MemberNames.Microflows_InputParameter.toString());
 		if ( paramaters.size() == 0 )
 			throw new CoreException("Could not find any parameters for microflow: " + this.mfName);
 
 		if ( paramaters.size() == 1 ) {
-			IMendixObject param1 = Core.retrieveId(this.context, paramaters.get(0));
-			this.paramNameSimple = (String) param1.getValue(this.context, Parameter.MemberNames.Name.toString());
-			if ( param1.getValue(this.context, Parameter.MemberNames.Parameter_ValueType.toString()) != null ) {
-				IMendixObject valueType = Core.retrieveId(this.context,
-						(IMendixIdentifier) param1.getValue(this.context, Parameter.MemberNames.Parameter_ValueType.toString()));
-				this.paramTypeSimple = PrimitiveTypes.valueOf((String) valueType.getValue(this.context,
+			IMendixObject param1 = Core.retrieveId(context, paramaters.get(0));
+			this.paramNameSimple = (String) param1.getValue(context, Parameter.MemberNames.Name.toString());
+			if ( param1.getValue(context, Parameter.MemberNames.Parameter_ValueType.toString()) != null ) {
+				IMendixObject valueType = Core.retrieveId(context,
+						(IMendixIdentifier) param1.getValue(context, Parameter.MemberNames.Parameter_ValueType.toString()));
+				this.paramTypeSimple = PrimitiveTypes.valueOf((String) valueType.getValue(context,
 						mxmodelreflection.proxies.ValueType.MemberNames.TypeEnum.toString()));
 			}
 		}
 		else if ( paramaters.size() == 2 ) {
-			IMendixObject param1 = Core.retrieveId(this.context, paramaters.get(0));
-			IMendixObject param2 = Core.retrieveId(this.context, paramaters.get(1));
+			IMendixObject param1 = Core.retrieveId(context, paramaters.get(0));
+			IMendixObject param2 = Core.retrieveId(context, paramaters.get(1));
 			// Is primitive parameter?
-			if ( param1.getValue(this.context, Parameter.MemberNames.Parameter_ValueType.toString()) != null ) {
-				if ( param2.getValue(this.context, Parameter.MemberNames.Parameter_ValueType.toString()) != null ) {
+			if ( param1.getValue(context, Parameter.MemberNames.Parameter_ValueType.toString()) != null ) {
+				if ( param2.getValue(context, Parameter.MemberNames.Parameter_ValueType.toString()) != null ) {
 					throw new CoreException("Invalid parameter types for microflow: " + this.mfName + " there are two parameters with a primitive type but there should be 1 mxObject parameter");
 				}
-				this.paramNameSimple = param1.getValue(this.context, Parameter.MemberNames.Name.toString());
-				if ( param1.getValue(this.context, Parameter.MemberNames.Parameter_ValueType.toString()) != null ) {
-					IMendixObject valueType = Core.retrieveId(this.context,
-							(IMendixIdentifier) param1.getValue(this.context, Parameter.MemberNames.Parameter_ValueType.toString()));
-					this.paramTypeSimple = PrimitiveTypes.valueOf((String) valueType.getValue(this.context,
+				this.paramNameSimple = param1.getValue(context, Parameter.MemberNames.Name.toString());
+				if ( param1.getValue(context, Parameter.MemberNames.Parameter_ValueType.toString()) != null ) {
+					IMendixObject valueType = Core.retrieveId(context,
+							(IMendixIdentifier) param1.getValue(context, Parameter.MemberNames.Parameter_ValueType.toString()));
+					this.paramTypeSimple = PrimitiveTypes.valueOf((String) valueType.getValue(context,
 							mxmodelreflection.proxies.ValueType.MemberNames.TypeEnum.toString()));
 				}
 
-				this.paramNameObject = param2.getValue(this.context, Parameter.MemberNames.Name.toString());
+				this.paramNameObject = param2.getValue(context, Parameter.MemberNames.Name.toString());
 			}
 			else {
-				if ( param2.getValue(this.context, Parameter.MemberNames.Parameter_ValueType.toString()) != null ) {
-					this.paramNameSimple = param2.getValue(this.context, Parameter.MemberNames.Name.toString());
-					if ( param2.getValue(this.context, Parameter.MemberNames.Parameter_ValueType.toString()) != null ) {
-						IMendixObject valueType = Core.retrieveId(this.context,
-								(IMendixIdentifier) param2.getValue(this.context, Parameter.MemberNames.Parameter_ValueType.toString()));
-						this.paramTypeSimple = PrimitiveTypes.valueOf((String) valueType.getValue(this.context,
+				if ( param2.getValue(context, Parameter.MemberNames.Parameter_ValueType.toString()) != null ) {
+					this.paramNameSimple = param2.getValue(context, Parameter.MemberNames.Name.toString());
+					if ( param2.getValue(context, Parameter.MemberNames.Parameter_ValueType.toString()) != null ) {
+						IMendixObject valueType = Core.retrieveId(context,
+								(IMendixIdentifier) param2.getValue(context, Parameter.MemberNames.Parameter_ValueType.toString()));
+						this.paramTypeSimple = PrimitiveTypes.valueOf((String) valueType.getValue(context,
 								mxmodelreflection.proxies.ValueType.MemberNames.TypeEnum.toString()));
 					}
 
-					this.paramNameObject = param1.getValue(this.context, Parameter.MemberNames.Name.toString());
+					this.paramNameObject = param1.getValue(context, Parameter.MemberNames.Name.toString());
 				}
 				else
 					throw new CoreException("Invalid parameter types for microflow: " + this.mfName + " there are two parameters with a primitive type but there should be 1 mxObject parameter");
@@ -83,6 +101,17 @@ public class MFValueParser implements IValueParser {
 
 	@Override
 	public Object parseValue( Object value ) throws ParseException {
+		if ( this.context == null )
+			throw new IllegalStateException("The parser for microflow: " + this.mfName + " is shared, the microflow can only be executed with the context of the action");
+
+		return parseValue(this.context, value);
+	}
+
+	/**
+	 * Execute the microflow using the provided context instead of the context this parser was created with.
+	 * This allows a single parser to be shared by multiple actions.
+	 */
+	public Object parseValue( IContext context, Object value ) throws ParseException {
 		HashMap<String, Object> paramMap = new HashMap<String, Object>();
 		if ( this.paramNameSimple != null ) {
 
@@ -126,17 +155,17 @@ public class MFValueParser implements IValueParser {
 
 
 		try {
-		this.context.startTransaction();
-			Object newValue = Core.execute(this.context, this.mfName, paramMap);
+		context.startTransaction();
+			Object newValue = Core.execute(context, this.mfName, paramMap);
 
 			if ( ValueParser.logNode.isTraceEnabled() ) {
 				ValueParser.logNode.trace("Executed microflow: " + this.mfName + " processed old value: " + value + " into new value: " + newValue);
 			}
-			this.context.endTransaction();
+			context.endTransaction();
 			return newValue;
 		}
 		catch( Exception e ) {
-			this.context.rollbackTransAction();
+			context.rollbackTransAction();
 			throw new ParseException("Exception occured while executing microflow: " + this.mfName, e);
 		}
 